@@ -0,0 +1,300 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        AdaptiveTimeouts.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Timeout controller driven by measured round trip times.
+ * <p>
+ * For every host it keeps a smoothed RTT and RTT variance per request phase,
+ * updated as in RFC 6298 (SRTT/RTTVAR with gains of 1/8 and 1/4). The timeout
+ * for a phase is SRTT + 4 * RTTVAR, clamped to a floor and ceiling for that
+ * phase. Until a phase has been measured its initial timeout is used.
+ * <p>
+ * When a phase times out, no sample is taken. Instead, as in RFC 6298 section
+ * 5.5, the timeout of that phase is doubled, up to its ceiling, and held there
+ * until the next real sample arrives. Otherwise a host that got slower would
+ * keep timing out at the old timeout and never be measured again.
+ * <p>
+ * Samples are fed in by {@link TimingSSLSocketFactory} (connect and TLS),
+ * {@link TokenFetcher} (token) and {@link #newReadInterceptor()} (read). The
+ * same classes mark the phase each thread is in, so that
+ * {@link #newTimeoutInterceptor()} knows which phase a timeout belongs to.
+ */
+final class AdaptiveTimeouts {
+
+    /**
+     * The phases of a request that are timed separately.
+     */
+    enum Phase {
+        // TCP connect to the server
+        CONNECT(1000, 10000, 3000),
+        // TLS handshake on a connected socket
+        TLS(1000, 10000, 3000),
+        // Approov token fetch from the SDK. Cached tokens come back in about a
+        // millisecond and real attestations take seconds, so the floor is the
+        // SDK's own wait and samples can only raise the allowance
+        TOKEN(10000, 30000, 10000),
+        // Writing the request and reading the response headers
+        READ(500, 15000, 10000);
+
+        final long floorMillis;
+        final long ceilingMillis;
+        final long initialMillis;
+
+        Phase(long floorMillis, long ceilingMillis, long initialMillis) {
+            this.floorMillis = floorMillis;
+            this.ceilingMillis = ceilingMillis;
+            this.initialMillis = initialMillis;
+        }
+    }
+
+    // Ceiling for a whole call, token fetch included
+    private static final long CALL_CEILING_MILLIS = 60000;
+
+    // Per-host estimators, indexed by Phase.ordinal()
+    private final Map<String, Estimator[]> estimators = new HashMap<>();
+
+    // The phase the request on each thread is currently in
+    private final ThreadLocal<Phase> currentPhase = new ThreadLocal<>();
+
+    /**
+     * Record a measured duration for one phase of a request.
+     *
+     * @param host the host the request was made to
+     * @param phase the phase that was measured
+     * @param millis the measured duration in milliseconds
+     */
+    synchronized void record(String host, Phase phase, long millis) {
+        estimatorFor(host, phase).update(millis);
+    }
+
+    /**
+     * Record that one phase of a request timed out. The timeout of the phase
+     * is doubled, up to its ceiling, until the next sample is recorded.
+     *
+     * @param host the host the request was made to
+     * @param phase the phase that timed out
+     */
+    synchronized void recordTimeout(String host, Phase phase) {
+        long backoff = Math.min(timeoutMillis(host, phase) * 2, phase.ceilingMillis);
+        estimatorFor(host, phase).backoffMillis = backoff;
+    }
+
+    /**
+     * Record that the request on the current thread timed out, in whichever
+     * phase it last entered. Does nothing if no phase was entered.
+     *
+     * @param host the host the request was made to
+     */
+    void recordTimeout(String host) {
+        Phase phase = currentPhase.get();
+        if (phase != null)
+            recordTimeout(host, phase);
+    }
+
+    /**
+     * Mark the phase the request on the current thread is entering.
+     *
+     * @param phase the phase being entered
+     */
+    void enterPhase(Phase phase) {
+        currentPhase.set(phase);
+    }
+
+    /**
+     * Get the current timeout for one phase of a request to a host.
+     *
+     * @param host the host the request will be made to
+     * @param phase the phase to get the timeout for
+     * @return the timeout in milliseconds
+     */
+    synchronized long timeoutMillis(String host, Phase phase) {
+        Estimator[] hostEstimators = estimators.get(host);
+        Estimator estimator = (hostEstimators == null) ? null : hostEstimators[phase.ordinal()];
+        if (estimator == null)
+            return phase.initialMillis;
+        if (estimator.backoffMillis > 0)
+            return estimator.backoffMillis;
+        if (!estimator.measured)
+            return phase.initialMillis;
+        return clamp(estimator.timeoutMillis(), phase.floorMillis, phase.ceilingMillis);
+    }
+
+    /**
+     * @return the socket connect timeout for the host in milliseconds
+     */
+    long connectTimeoutMillis(String host) {
+        return timeoutMillis(host, Phase.CONNECT);
+    }
+
+    /**
+     * The TLS handshake runs under the socket read timeout, so the
+     * read timeout has to cover whichever of the two is longer.
+     *
+     * @return the socket read timeout for the host in milliseconds
+     */
+    long readTimeoutMillis(String host) {
+        return Math.max(timeoutMillis(host, Phase.READ), timeoutMillis(host, Phase.TLS));
+    }
+
+    /**
+     * The token fetch itself is left to the SDK's own wait; this is only the
+     * allowance made for it within the call timeout.
+     *
+     * @return the token fetch allowance for the host in milliseconds
+     */
+    long tokenTimeoutMillis(String host) {
+        return timeoutMillis(host, Phase.TOKEN);
+    }
+
+    /**
+     * @return the timeout for a whole call to the host, from token fetch
+     *          to response headers, in milliseconds
+     */
+    long callTimeoutMillis(String host) {
+        long total = 0;
+        for (Phase phase : Phase.values())
+            total += timeoutMillis(host, phase);
+        return Math.min(total, CALL_CEILING_MILLIS);
+    }
+
+    /**
+     * Derive a client using the current timeouts for a host. The returned
+     * client shares the connection pool and dispatcher of the original.
+     *
+     * @param client the client to derive from
+     * @param host the host the client will be used for
+     * @return a client with adaptive connect, read and write timeouts
+     */
+    OkHttpClient applyTo(OkHttpClient client, String host) {
+        long readTimeout = readTimeoutMillis(host);
+        return client.newBuilder()
+                .connectTimeout(connectTimeoutMillis(host), TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Create a network interceptor that measures the read phase. Add it as
+     * the last network interceptor so that work done by other interceptors,
+     * such as fetching a token, is not counted.
+     *
+     * @return an interceptor recording read samples into this controller
+     */
+    Interceptor newReadInterceptor() {
+        return new Interceptor() {
+
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Request request = chain.request();
+                enterPhase(Phase.READ);
+                long start = System.nanoTime();
+                Response response = chain.proceed(request);
+                record(request.url().host(), Phase.READ,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return response;
+            }
+        };
+    }
+
+    /**
+     * Create an application interceptor that backs off the timeout of the
+     * phase a call timed out in. Add it before any other interceptor so it
+     * sees timeouts from the whole call.
+     *
+     * @return an interceptor recording timeouts into this controller
+     */
+    Interceptor newTimeoutInterceptor() {
+        return new Interceptor() {
+
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Request request = chain.request();
+                currentPhase.remove();
+                try {
+                    return chain.proceed(request);
+                } catch (InterruptedIOException ex) {
+                    recordTimeout(request.url().host());
+                    throw ex;
+                } finally {
+                    currentPhase.remove();
+                }
+            }
+        };
+    }
+
+    /**
+     * Describe the current timeouts for a host, for logging.
+     *
+     * @param host the host to describe
+     * @return a readable summary of the timeouts
+     */
+    String describe(String host) {
+        return host + ": connect=" + connectTimeoutMillis(host)
+                + "ms, read=" + readTimeoutMillis(host)
+                + "ms, token=" + tokenTimeoutMillis(host)
+                + "ms, call=" + callTimeoutMillis(host) + "ms";
+    }
+
+    private Estimator estimatorFor(String host, Phase phase) {
+        Estimator[] hostEstimators = estimators.get(host);
+        if (hostEstimators == null) {
+            hostEstimators = new Estimator[Phase.values().length];
+            estimators.put(host, hostEstimators);
+        }
+        Estimator estimator = hostEstimators[phase.ordinal()];
+        if (estimator == null) {
+            estimator = new Estimator();
+            hostEstimators[phase.ordinal()] = estimator;
+        }
+        return estimator;
+    }
+
+    private static long clamp(long value, long floor, long ceiling) {
+        return Math.max(floor, Math.min(ceiling, value));
+    }
+
+    /**
+     * Smoothed RTT estimator for a single host and phase.
+     */
+    private static final class Estimator {
+        private double srtt;
+        private double rttvar;
+        private boolean measured = false;
+
+        // Backed off timeout after a timeout, or 0 if none
+        private long backoffMillis = 0;
+
+        void update(long sample) {
+            backoffMillis = 0;
+            if (!measured) {
+                srtt = sample;
+                rttvar = sample / 2.0;
+                measured = true;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - sample);
+                srtt = 0.875 * srtt + 0.125 * sample;
+            }
+        }
+
+        long timeoutMillis() {
+            return (long) Math.ceil(srtt + 4 * rttvar);
+        }
+    }
+}
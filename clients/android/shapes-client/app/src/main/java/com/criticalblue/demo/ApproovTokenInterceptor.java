@@ -15,6 +15,9 @@ import okhttp3.Response;
  * OkHttp Interceptor to add an Approov
  * token to API requests.
  *
+ * Add it as an application interceptor, so a request which the outage
+ * policy does not send without a token fails before a connection is made.
+ *
  * Created by barryo on 21/08/17.
  */
 
@@ -22,14 +25,25 @@ final class ApproovTokenInterceptor implements Interceptor {
 
     final static String TAG = "APPROOV_INTERCEPTOR";
 
+    // Fetches tokens, usually the TokenFetcher recording their latency
+    private final TokenSource tokenSource;
+
+    // Decides whether requests are sent without a token
+    private final AttestationOutagePolicy outagePolicy;
+
+    ApproovTokenInterceptor(TokenSource tokenSource, AttestationOutagePolicy outagePolicy) {
+        this.tokenSource = tokenSource;
+        this.outagePolicy = outagePolicy;
+    }
+
     @Override
     public Response intercept(Chain chain) throws IOException {
 
         Request originalRequest = chain.request();
 
         // Fetch an Approov Token using the SDK
-        TokenInterface.ApproovResults approovResults = ApproovAttestation.shared()
-                .fetchApproovTokenAndWait(originalRequest.url().host());
+        TokenInterface.ApproovResults approovResults
+                = tokenSource.fetchToken(originalRequest.url().host());
 
         // Always check the return status of the fetch call.
         String token;
@@ -43,6 +57,11 @@ final class ApproovTokenInterceptor implements Interceptor {
             // before timing out. Set the token field to a known value to communicate
             // this state (rather than leaving empty or excluding from the header)
             Log.w(TAG, "Approov SDK token fetch failed");
+            // Don't make a round trip the server is bound to decline
+            // unless the policy for this endpoint asks for it.
+            if (!outagePolicy.sendWithoutToken(originalRequest.url().encodedPath()))
+                throw new AttestationUnavailableException(
+                        "No Approov token for " + originalRequest.url());
             token = "NOTOKEN";
         }
 
@@ -0,0 +1,409 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        AttestationOutagePolicy.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import android.util.Log;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+import com.criticalblue.attestationlibrary.TokenInterface.ApproovResults;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Decides what to do with a request when no Approov token could be fetched.
+ * <p>
+ * A request sent with "Approov-Token: NOTOKEN" will be declined by the server,
+ * so for each endpoint (URL path) one of the following modes can be chosen:
+ * <p>
+ * SEND      - send the request anyway, as before.
+ * FAIL_FAST - fail the request locally without contacting the server.
+ * DEFER     - hold the request in a bounded in-memory queue and replay it
+ *             once the SDK is handing out tokens again. Requests that do
+ *             not fit in the queue fail fast.
+ * <p>
+ * Only the request itself is queued: the OkHttp Request, the Call.Factory to
+ * replay it on, which must add the token (e.g. with an
+ * {@link ApproovTokenInterceptor}), and the Callback to hand the result to.
+ * Callbacks are removed with {@link #cancel(Callback)}, e.g. when the Activity
+ * that registered them is destroyed. Requests still queued after a minute are
+ * dropped and failed, as the user is no longer waiting for them.
+ * <p>
+ * While requests are queued the SDK is probed through the
+ * {@link TokenFetcher} with a backing off interval, so the queue drains even
+ * if nothing else fetches a token. Round trips saved and the current queue
+ * depth are counted for monitoring.
+ */
+final class AttestationOutagePolicy {
+
+    /**
+     * What to do with a request for an endpoint while attestation is unavailable.
+     */
+    enum Mode {
+        SEND,
+        FAIL_FAST,
+        DEFER
+    }
+
+    // Log tag for searching in logcat
+    private static final String TAG = "ATTESTATION_OUTAGE";
+
+    // Maximum number of requests held while attestation is unavailable
+    private static final int MAX_QUEUE_DEPTH = 16;
+
+    // Longest a request is held before it is dropped and failed, by default
+    private static final long MAX_QUEUE_AGE_MILLIS = 60 * 1000;
+
+    // Token probe interval, doubling on each failure up to the maximum
+    private static final long MIN_PROBE_DELAY_MILLIS = 1000;
+    private static final long MAX_PROBE_DELAY_MILLIS = 30000;
+
+    // Longest a request is held by this policy
+    private final long maxQueueAgeMillis;
+
+    private final Map<String, Mode> endpointModes = new HashMap<>();
+    private final List<Deferred> deferred = new ArrayList<>();
+    private final Set<Deferred> replaying = new HashSet<>();
+    private final ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private TokenFetcher tokenFetcher = null;
+    private Mode defaultMode = Mode.SEND;
+    private String probeHost = null;
+    private boolean probeScheduled = false;
+    private long probeDelayMillis = MIN_PROBE_DELAY_MILLIS;
+
+    private long savedRoundTrips = 0;
+    private long replayed = 0;
+    private long expired = 0;
+
+    /**
+     * Construct a policy holding deferred requests for up to a minute.
+     */
+    AttestationOutagePolicy() {
+        this(MAX_QUEUE_AGE_MILLIS);
+    }
+
+    /**
+     * Construct a policy holding deferred requests for a given time.
+     *
+     * @param maxQueueAgeMillis how long a request is held before it is
+     *                          dropped and failed
+     */
+    AttestationOutagePolicy(long maxQueueAgeMillis) {
+        this.maxQueueAgeMillis = maxQueueAgeMillis;
+    }
+
+    /**
+     * Set the fetcher used to probe the SDK while requests are queued. The
+     * fetcher reports its results back to this policy.
+     *
+     * @param tokenFetcher the token fetcher
+     */
+    synchronized void setTokenFetcher(TokenFetcher tokenFetcher) {
+        this.tokenFetcher = tokenFetcher;
+    }
+
+    /**
+     * Set the mode used for endpoints without a mode of their own.
+     *
+     * @param mode the default mode
+     */
+    synchronized void setDefaultMode(Mode mode) {
+        defaultMode = mode;
+    }
+
+    /**
+     * Set the mode used for one endpoint.
+     *
+     * @param path the URL path of the endpoint, e.g. "/shapes"
+     * @param mode the mode for that endpoint
+     */
+    synchronized void setMode(String path, Mode mode) {
+        endpointModes.put(path, mode);
+    }
+
+    synchronized Mode modeFor(String path) {
+        Mode mode = endpointModes.get(path);
+        return (mode == null) ? defaultMode : mode;
+    }
+
+    /**
+     * Check whether a request to an endpoint should still be sent when no
+     * token is available.
+     *
+     * @param path the URL path of the endpoint
+     * @return true if the request should be sent with a NOTOKEN header
+     */
+    boolean sendWithoutToken(String path) {
+        return modeFor(path) == Mode.SEND;
+    }
+
+    /**
+     * Hand over a request that was not sent for lack of a token. If the
+     * endpoint is in DEFER mode and there is room in the queue it will be
+     * replayed once a token can be fetched again, and the result passed to
+     * the callback.
+     *
+     * @param callFactory the factory to replay the request on; it must add
+     *                    the Approov token itself
+     * @param request the request, without a token
+     * @param callback receives the result of the replay, or null if the
+     *                 caller cannot wait for one, in which case the request
+     *                 fails fast whatever the mode
+     * @return true if the request was queued, false if it failed fast
+     */
+    boolean defer(Call.Factory callFactory, Request request, Callback callback) {
+        List<Deferred> stale;
+        boolean queued;
+        synchronized (this) {
+            savedRoundTrips++;
+            stale = removeStale();
+            String path = request.url().encodedPath();
+            if (callback == null || modeFor(path) != Mode.DEFER || deferred.size() >= MAX_QUEUE_DEPTH) {
+                Log.w(TAG, "Failing request to " + path + " without a token. " + this);
+                queued = false;
+            } else {
+                deferred.add(new Deferred(callFactory, request, callback, nowMillis() + maxQueueAgeMillis));
+                probeHost = request.url().host();
+                Log.w(TAG, "Deferring request to " + path + " until a token is available. " + this);
+                scheduleProbe();
+                queued = true;
+            }
+        }
+        expire(stale);
+        return queued;
+    }
+
+    /**
+     * Drop the queued requests of a callback and cancel those being
+     * replayed, e.g. when the Activity waiting for them is destroyed.
+     *
+     * @param callback the callback passed to defer()
+     */
+    void cancel(Callback callback) {
+        List<Call> calls = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Deferred> queued = deferred.iterator();
+            while (queued.hasNext()) {
+                if (queued.next().callback == callback)
+                    queued.remove();
+            }
+            for (Deferred replay : replaying) {
+                if (replay.callback == callback && replay.call != null)
+                    calls.add(replay.call);
+            }
+        }
+        for (Call call : calls)
+            call.cancel();
+    }
+
+    /**
+     * Report the outcome of a token fetch. A success replays any requests
+     * that were deferred.
+     *
+     * @param success true if the SDK returned a token
+     */
+    void onTokenResult(boolean success) {
+        List<Deferred> replays;
+        List<Deferred> stale;
+        synchronized (this) {
+            if (!success || deferred.isEmpty())
+                return;
+            stale = removeStale();
+            replays = new ArrayList<>(deferred);
+            deferred.clear();
+            replaying.addAll(replays);
+            replayed += replays.size();
+            probeDelayMillis = MIN_PROBE_DELAY_MILLIS;
+            Log.i(TAG, "Token available again. Replaying " + replays.size() + " requests. " + this);
+        }
+
+        expire(stale);
+        for (Deferred replay : replays)
+            replay(replay);
+    }
+
+    /**
+     * @return the number of requests currently waiting for a token
+     */
+    synchronized int queueDepth() {
+        return deferred.size();
+    }
+
+    /**
+     * @return the number of requests not sent to the server for lack of a token
+     */
+    synchronized long savedRoundTrips() {
+        return savedRoundTrips;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AttestationOutagePolicy{saved=" + savedRoundTrips
+                + ", queued=" + deferred.size()
+                + ", replayed=" + replayed
+                + ", expired=" + expired + "}";
+    }
+
+    /**
+     * Send a deferred request again. If there is still no token it goes back
+     * in the queue, without being counted as another saved round trip.
+     */
+    private void replay(final Deferred replay) {
+        Call call = replay.callFactory.newCall(replay.request);
+        synchronized (this) {
+            replay.call = call;
+        }
+        call.enqueue(new Callback() {
+
+            @Override
+            public void onFailure(Call call, IOException ex) {
+                synchronized (AttestationOutagePolicy.this) {
+                    replaying.remove(replay);
+                    if (ex instanceof AttestationUnavailableException && !call.isCanceled()
+                            && !replay.isStale(nowMillis())
+                            && deferred.size() < MAX_QUEUE_DEPTH) {
+                        replay.call = null;
+                        deferred.add(replay);
+                        scheduleProbe();
+                        return;
+                    }
+                }
+                replay.callback.onFailure(call, ex);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                synchronized (AttestationOutagePolicy.this) {
+                    replaying.remove(replay);
+                }
+                replay.callback.onResponse(call, response);
+            }
+        });
+    }
+
+    /**
+     * Remove the requests which have been queued for too long.
+     *
+     * @return the removed requests, to be failed outside the lock
+     */
+    private List<Deferred> removeStale() {
+        List<Deferred> stale = new ArrayList<>();
+        long now = nowMillis();
+        Iterator<Deferred> queued = deferred.iterator();
+        while (queued.hasNext()) {
+            Deferred entry = queued.next();
+            if (entry.isStale(now)) {
+                queued.remove();
+                stale.add(entry);
+            }
+        }
+        expired += stale.size();
+        return stale;
+    }
+
+    /**
+     * @return a monotonic clock in milliseconds
+     */
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static void expire(List<Deferred> stale) {
+        for (Deferred entry : stale) {
+            entry.callback.onFailure(entry.callFactory.newCall(entry.request),
+                    new AttestationUnavailableException("Deferred request to " + entry.request.url() + " expired"));
+        }
+    }
+
+    /**
+     * Schedule a token fetch to find out when the SDK has recovered.
+     */
+    private void scheduleProbe() {
+        if (probeScheduled || tokenFetcher == null)
+            return;
+        probeScheduled = true;
+
+        prober.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                String host;
+                TokenFetcher fetcher;
+                synchronized (AttestationOutagePolicy.this) {
+                    probeScheduled = false;
+                    if (deferred.isEmpty())
+                        return;
+                    host = probeHost;
+                    fetcher = tokenFetcher;
+                }
+
+                // The fetcher records the token latency and reports the
+                // result back to onTokenResult()
+                ApproovResults results = fetcher.fetchToken(host);
+                if (results.getResult() != ApproovAttestation.AttestationResult.SUCCESS) {
+                    List<Deferred> stale;
+                    synchronized (AttestationOutagePolicy.this) {
+                        stale = removeStale();
+                        probeDelayMillis = Math.min(MAX_PROBE_DELAY_MILLIS, probeDelayMillis * 2);
+                        if (!deferred.isEmpty())
+                            scheduleProbe();
+                    }
+                    expire(stale);
+                }
+            }
+        }, probeDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A request waiting for a token.
+     */
+    private static final class Deferred {
+        final Call.Factory callFactory;
+        final Request request;
+        final Callback callback;
+        final long expiresAt;
+
+        // The replay in flight, if any
+        Call call = null;
+
+        Deferred(Call.Factory callFactory, Request request, Callback callback, long expiresAt) {
+            this.callFactory = callFactory;
+            this.request = request;
+            this.callback = callback;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isStale(long now) {
+            return now > expiresAt;
+        }
+    }
+}
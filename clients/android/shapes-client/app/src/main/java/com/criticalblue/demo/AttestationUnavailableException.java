@@ -0,0 +1,25 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        AttestationUnavailableException.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request which has no Approov token, when the
+ * {@link AttestationOutagePolicy} says the request should not be sent.
+ * <p>
+ * Being an IOException it passes through OkHttp like any other failure, so
+ * callers can catch it to fail or defer the request.
+ */
+final class AttestationUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    AttestationUnavailableException(String message) {
+        super(message);
+    }
+}
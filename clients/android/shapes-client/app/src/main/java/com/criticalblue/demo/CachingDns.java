@@ -0,0 +1,441 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        CachingDns.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Dns;
+
+/**
+ * OkHttp Dns which caches lookups so repeated connects skip DNS entirely.
+ * <p>
+ * The platform resolver does not tell us record TTLs, so entries are kept for
+ * a fixed TTL. Once an entry has expired it is still served for a stale
+ * window while a fresh lookup runs in the background. Hosts registered with
+ * {@link #prefetch(String)} are resolved ahead of their first request and
+ * refreshed before they expire, but only while the app is in the foreground
+ * (see {@link #setForeground(boolean)}) and only for hosts looked up within
+ * the stale window. Idle hosts are left to expire instead of waking the
+ * radio every refresh interval.
+ * <p>
+ * When a host has both IPv4 and IPv6 addresses, a connect to one address of
+ * each family is raced in the background, at most every ten minutes per host.
+ * The winning family is put first, interleaved with the other, so OkHttp
+ * tries the fastest family first and falls back to the other.
+ * <p>
+ * Addresses and race results depend on the network, so both are dropped by
+ * {@link #onNetworkChanged()}, and lookups or races still running on the old
+ * network are discarded.
+ * <p>
+ * Use Cases:
+ *
+ *  CachingDns dns = new CachingDns(Dns.SYSTEM, 443);
+ *  dns.prefetch(SERVER_HOSTNAME);
+ *  dns.setForeground(true);    // when the first activity starts
+ *  dns.onNetworkChanged();     // on a connectivity change
+ *  OkHttpClient client = new OkHttpClient.Builder().dns(dns).build();
+ */
+final class CachingDns implements Dns {
+
+    // Log tag for searching in logcat
+    private static final String TAG = "CACHING_DNS";
+
+    // How long a lookup is used without checking it again
+    private static final long TTL_MILLIS = 60 * 1000;
+
+    // How long an expired lookup is still used while it is refreshed
+    private static final long STALE_MILLIS = 10 * 60 * 1000;
+
+    // How long the result of an address family race is trusted
+    private static final long RACE_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    // Timeout for each connect in an address family race
+    private static final int RACE_TIMEOUT_MILLIS = 2000;
+
+    private final Dns delegate;
+    private final int racePort;
+
+    private final Map<String, Entry> cache = new HashMap<>();
+    private final Map<String, Boolean> preferIpv6 = new HashMap<>();
+    private final Map<String, Long> lastRaced = new HashMap<>();
+    private final Set<String> refreshing = new HashSet<>();
+    private final Set<String> prefetchHosts = new HashSet<>();
+    private final Map<String, Long> lastUsed = new HashMap<>();
+
+    private final ThreadFactory threadFactory = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    private final ExecutorService workers = Executors.newCachedThreadPool(threadFactory);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+    // Periodic refresh of the prefetched hosts, only scheduled in the foreground
+    private ScheduledFuture<?> prefetchTask = null;
+    private boolean foreground = false;
+
+    // Incremented on each network change, so results from the old network are dropped
+    private long generation = 0;
+
+    private long hits = 0;
+    private long staleHits = 0;
+    private long misses = 0;
+    private long failures = 0;
+    private long lookups = 0;
+    private long totalLookupMillis = 0;
+    private long lastLookupMillis = 0;
+
+    /**
+     * @param delegate the resolver used for real lookups, usually Dns.SYSTEM
+     * @param racePort the port to connect to when racing address families
+     */
+    CachingDns(Dns delegate, int racePort) {
+        this.delegate = delegate;
+        this.racePort = racePort;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            lastUsed.put(hostname, now);
+            Entry entry = cache.get(hostname);
+            if (entry != null && now < entry.expiresAt) {
+                hits++;
+                return entry.addresses;
+            }
+            if (entry != null && now < entry.expiresAt + STALE_MILLIS) {
+                staleHits++;
+                refreshAsync(hostname);
+                return entry.addresses;
+            }
+            misses++;
+        }
+
+        List<InetAddress> addresses = resolve(hostname);
+        raceAsync(hostname, addresses);
+        return addresses;
+    }
+
+    /**
+     * Register a host to be resolved now and kept fresh in the background.
+     *
+     * @param hostname the host to prefetch
+     */
+    synchronized void prefetch(String hostname) {
+        if (!prefetchHosts.add(hostname))
+            return;
+
+        // Count registration as a use, so the host is resolved ahead of its first request
+        lastUsed.put(hostname, SystemClock.elapsedRealtime());
+        if (foreground) {
+            stopPrefetching();
+            startPrefetching();
+        }
+    }
+
+    /**
+     * Tell the resolver whether the app is in the foreground. Prefetched
+     * hosts are only kept fresh while it is.
+     *
+     * @param foreground true when the app has a started activity
+     */
+    synchronized void setForeground(boolean foreground) {
+        if (this.foreground == foreground)
+            return;
+        this.foreground = foreground;
+        if (foreground)
+            startPrefetching();
+        else
+            stopPrefetching();
+    }
+
+    /**
+     * Forget every cached lookup and address family race, e.g. when the
+     * device moves from Wi-Fi to mobile data, and resolve the prefetched
+     * hosts again if the app is in the foreground.
+     */
+    synchronized void onNetworkChanged() {
+        generation++;
+        cache.clear();
+        preferIpv6.clear();
+        lastRaced.clear();
+        Log.i(TAG, "Network changed, cleared cached lookups. " + this);
+        if (foreground) {
+            stopPrefetching();
+            startPrefetching();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CachingDns{hits=" + hits
+                + ", staleHits=" + staleHits
+                + ", misses=" + misses
+                + ", failures=" + failures
+                + ", lastLookup=" + lastLookupMillis
+                + "ms, averageLookup=" + (lookups == 0 ? 0 : totalLookupMillis / lookups) + "ms}";
+    }
+
+    private void startPrefetching() {
+        if (prefetchHosts.isEmpty())
+            return;
+
+        prefetchTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                refreshPrefetchHosts();
+            }
+        }, 0, TTL_MILLIS * 3 / 4, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopPrefetching() {
+        if (prefetchTask != null) {
+            prefetchTask.cancel(false);
+            prefetchTask = null;
+        }
+    }
+
+    /**
+     * Refresh the prefetched hosts which have been looked up recently and
+     * are not already being refreshed.
+     */
+    private void refreshPrefetchHosts() {
+        List<String> hosts = new ArrayList<>();
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            for (String hostname : prefetchHosts) {
+                Long usedAt = lastUsed.get(hostname);
+                if (usedAt != null && now - usedAt < STALE_MILLIS && refreshing.add(hostname))
+                    hosts.add(hostname);
+            }
+        }
+
+        for (String hostname : hosts)
+            refresh(hostname);
+    }
+
+    /**
+     * Look a host up with the delegate and cache the result.
+     */
+    private List<InetAddress> resolve(String hostname) throws UnknownHostException {
+        long resolveGeneration;
+        synchronized (this) {
+            resolveGeneration = generation;
+        }
+        long start = SystemClock.elapsedRealtime();
+        List<InetAddress> addresses;
+        try {
+            addresses = delegate.lookup(hostname);
+        } catch (UnknownHostException ex) {
+            synchronized (this) {
+                failures++;
+            }
+            throw ex;
+        }
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        synchronized (this) {
+            lookups++;
+            totalLookupMillis += millis;
+            lastLookupMillis = millis;
+            addresses = order(addresses, preferIpv6.get(hostname));
+            if (resolveGeneration == generation)
+                cache.put(hostname, new Entry(addresses, SystemClock.elapsedRealtime() + TTL_MILLIS));
+        }
+        Log.i(TAG, "Resolved " + hostname + " in " + millis + "ms. " + this);
+        return addresses;
+    }
+
+    /**
+     * Resolve a host again and race its address families, keeping the
+     * current entry if the lookup fails. The caller must have added the
+     * host to refreshing.
+     */
+    private void refresh(String hostname) {
+        try {
+            race(hostname, resolve(hostname));
+        } catch (UnknownHostException ex) {
+            Log.w(TAG, "Refresh of " + hostname + " failed: " + ex.getMessage());
+        } finally {
+            synchronized (this) {
+                refreshing.remove(hostname);
+            }
+        }
+    }
+
+    private synchronized void refreshAsync(final String hostname) {
+        if (!refreshing.add(hostname))
+            return;
+
+        workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                refresh(hostname);
+            }
+        });
+    }
+
+    private void raceAsync(final String hostname, final List<InetAddress> addresses) {
+        workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                race(hostname, addresses);
+            }
+        });
+    }
+
+    /**
+     * Connect to the first IPv4 and first IPv6 address in parallel and put
+     * the family which connects first at the front of the cached entry.
+     */
+    private void race(String hostname, List<InetAddress> addresses) {
+        InetAddress ipv4 = null;
+        InetAddress ipv6 = null;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                if (ipv6 == null)
+                    ipv6 = address;
+            } else if (ipv4 == null) {
+                ipv4 = address;
+            }
+        }
+        if (ipv4 == null || ipv6 == null)
+            return;
+
+        long raceGeneration;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            Long racedAt = lastRaced.get(hostname);
+            if (racedAt != null && now - racedAt < RACE_INTERVAL_MILLIS)
+                return;
+            lastRaced.put(hostname, now);
+            raceGeneration = generation;
+        }
+
+        CompletionService<InetAddress> race = new ExecutorCompletionService<>(workers);
+        race.submit(connect(ipv4));
+        race.submit(connect(ipv6));
+
+        InetAddress winner = null;
+        try {
+            for (int i = 0; i < 2 && winner == null; i++) {
+                try {
+                    winner = race.take().get();
+                } catch (ExecutionException ex) {
+                    // This family failed to connect, wait for the other
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (winner == null)
+            return;
+
+        boolean ipv6Won = winner instanceof Inet6Address;
+        Log.i(TAG, (ipv6Won ? "IPv6" : "IPv4") + " connected first to " + hostname);
+        synchronized (this) {
+            if (raceGeneration != generation)
+                return;
+            preferIpv6.put(hostname, ipv6Won);
+            Entry entry = cache.get(hostname);
+            if (entry != null)
+                cache.put(hostname, new Entry(order(entry.addresses, ipv6Won), entry.expiresAt));
+        }
+    }
+
+    private Callable<InetAddress> connect(final InetAddress address) {
+        return new Callable<InetAddress>() {
+
+            @Override
+            public InetAddress call() throws IOException {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(address, racePort), RACE_TIMEOUT_MILLIS);
+                }
+                return address;
+            }
+        };
+    }
+
+    /**
+     * Interleave the address families, starting with the preferred one.
+     *
+     * @param addresses the addresses to order
+     * @param preferIpv6 true or false to start with that family, or null to
+     *                   start with the family of the first address
+     * @return the ordered addresses
+     */
+    private static List<InetAddress> order(List<InetAddress> addresses, Boolean preferIpv6) {
+        List<InetAddress> ipv4 = new ArrayList<>();
+        List<InetAddress> ipv6 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address)
+                ipv6.add(address);
+            else
+                ipv4.add(address);
+        }
+        if (preferIpv6 == null)
+            preferIpv6 = !addresses.isEmpty() && addresses.get(0) instanceof Inet6Address;
+
+        List<InetAddress> first = preferIpv6 ? ipv6 : ipv4;
+        List<InetAddress> second = preferIpv6 ? ipv4 : ipv6;
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size())
+                ordered.add(first.get(i));
+            if (i < second.size())
+                ordered.add(second.get(i));
+        }
+        return Collections.unmodifiableList(ordered);
+    }
+
+    /**
+     * A cached lookup.
+     */
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final long expiresAt;
+
+        Entry(List<InetAddress> addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        HedgedRequestExecutor.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Executes OkHttp requests with optional hedging to cut tail latency.
+ * <p>
+ * Every call uses the connect and read timeouts currently learned by
+ * {@link AdaptiveTimeouts} for its host, and the call as a whole is
+ * abandoned once the adaptive call timeout has passed.
+ * <p>
+ * When hedging is enabled in the {@link HedgingPolicy} and the first attempt
+ * has not answered within the policy's hedge delay, an identical copy of the
+ * request (same headers, so the same Approov token) is sent on the app-wide
+ * hedge connection pool. The first response to arrive is returned and the
+ * other call is cancelled. The delay is taken from the latencies of earlier
+ * requests by the same named executor to the same host.
+ * <p>
+ * Only requests which already carry their token can be hedged. A client
+ * adding the token with an {@link ApproovTokenInterceptor} would fetch a new
+ * token for each attempt, and its latency would be mostly attestation time,
+ * so such clients get an executor which never hedges.
+ * <p>
+ * Exceptions from the winning path are passed through unchanged, so callers
+ * should keep catching SSLPeerUnverifiedException and retrying as they would
+ * for a plain {@code client.newCall(request).execute()}.
+ */
+final class HedgedRequestExecutor {
+
+    // Log tag for searching in logcat
+    private static final String TAG = "HEDGED_REQUEST";
+
+    private final OkHttpClient client;
+    private final OkHttpClient hedgeClient;
+    private final HedgingPolicy policy;
+    private final AdaptiveTimeouts timeouts;
+    private final String name;
+
+    /**
+     * Construct an executor which never hedges, for a client which adds the
+     * Approov token in an interceptor.
+     *
+     * @param client the client used for every request
+     * @param timeouts the controller providing per-host timeouts
+     */
+    HedgedRequestExecutor(OkHttpClient client, AdaptiveTimeouts timeouts) {
+        this.client = client;
+        this.hedgeClient = null;
+        this.policy = null;
+        this.timeouts = timeouts;
+        this.name = null;
+    }
+
+    /**
+     * Construct an executor which hedges slow requests on the given client.
+     *
+     * @param name names the executor's latency windows in the policy, e.g.
+     *             "okhttp"; executors for the same path share a name
+     * @param client the client used for the first attempt; it must not add
+     *               the Approov token itself
+     * @param hedgeClient the app-wide hedge client, whose connection pool and
+     *                    dispatcher are used for hedges so that hedge
+     *                    connections are reused from one request to the next
+     * @param policy the shared policy deciding when to hedge
+     * @param timeouts the controller providing per-host timeouts
+     */
+    HedgedRequestExecutor(String name, OkHttpClient client, OkHttpClient hedgeClient, HedgingPolicy policy,
+                          AdaptiveTimeouts timeouts) {
+        for (Interceptor interceptor : client.interceptors()) {
+            if (interceptor instanceof ApproovTokenInterceptor)
+                throw new IllegalArgumentException("Requests whose token is added by an interceptor cannot be hedged");
+        }
+        this.client = client;
+        this.policy = policy;
+        this.timeouts = timeouts;
+        this.name = name;
+
+        // Same stack as the first attempt, but on the separate hedge pool so
+        // the hedge does not queue behind a slow connection
+        this.hedgeClient = client.newBuilder()
+                .connectionPool(hedgeClient.connectionPool())
+                .dispatcher(hedgeClient.dispatcher())
+                .build();
+    }
+
+    /**
+     * Execute the request synchronously, hedging it if the policy allows.
+     * The whole call is bounded by the adaptive call timeout for the host.
+     *
+     * @param request the request to send
+     * @return the first response received
+     * @throws IOException if every attempt failed or the call timed out
+     */
+    Response execute(Request request) throws IOException {
+        String host = request.url().host();
+        String key = (name == null) ? null : name + ":" + host;
+        if (policy != null)
+            policy.onRequest();
+
+        long start = System.nanoTime();
+        long deadline = start
+                + TimeUnit.MILLISECONDS.toNanos(timeouts.callTimeoutMillis(host));
+
+        Race race = new Race();
+        race.start(timeouts.applyTo(client, host), request);
+
+        try {
+            Attempt attempt = null;
+            long hedgeDelay = (policy != null && policy.isEnabled()) ? policy.hedgeDelayMillis(key) : -1;
+            if (hedgeDelay >= 0 && TimeUnit.MILLISECONDS.toNanos(hedgeDelay) < deadline - System.nanoTime()) {
+                attempt = race.outcomes.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                if (attempt == null && policy.tryAcquireHedge()) {
+                    Log.i(TAG, "No response after " + hedgeDelay + "ms. Sending hedged request.");
+                    race.start(timeouts.applyTo(hedgeClient, host), request);
+                }
+            }
+            if (attempt == null)
+                attempt = race.next(deadline);
+
+            // Wait for the first response, or for every attempt to fail
+            IOException failure = null;
+            int pending = race.started();
+            while (true) {
+                pending--;
+                if (attempt.response != null) {
+                    race.finish(attempt.call);
+                    recordLatency(key, start);
+                    return attempt.response;
+                }
+                if (failure == null)
+                    failure = attempt.failure;
+                if (pending == 0)
+                    break;
+                attempt = race.next(deadline);
+            }
+            race.finish(null);
+            throw failure;
+
+        } catch (InterruptedIOException ex) {
+            // Timed out: record the time we gave up, so slow requests are not
+            // left out of the window the hedge delay is taken from. Other
+            // failures are often instant and would drag the delay down.
+            recordLatency(key, start);
+            throw ex;
+        } catch (InterruptedException ex) {
+            race.finish(null);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        }
+    }
+
+    /**
+     * Record the elapsed time of the whole request, if this executor hedges.
+     */
+    private void recordLatency(String key, long startNanos) {
+        if (policy != null)
+            policy.recordLatency(key, elapsedMillis(startNanos));
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * The result of a single call: either a response or a failure.
+     */
+    private static final class Attempt {
+        final Call call;
+        final Response response;
+        final IOException failure;
+
+        Attempt(Call call, Response response, IOException failure) {
+            this.call = call;
+            this.response = response;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * The set of calls racing to answer one request.
+     */
+    private static final class Race {
+        final BlockingQueue<Attempt> outcomes = new LinkedBlockingQueue<>();
+        private final List<Call> calls = new ArrayList<>();
+        private boolean finished = false;
+
+        synchronized void start(OkHttpClient client, Request request) {
+            Call call = client.newCall(request);
+            calls.add(call);
+            call.enqueue(new Callback() {
+
+                @Override
+                public void onFailure(Call call, IOException ex) {
+                    deliver(new Attempt(call, null, ex));
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    deliver(new Attempt(call, response, null));
+                }
+            });
+        }
+
+        /**
+         * Wait for the next attempt to complete.
+         *
+         * @param deadline the System.nanoTime() by which the call must complete
+         * @return the completed attempt
+         * @throws InterruptedIOException if the deadline passes first
+         */
+        Attempt next(long deadline) throws InterruptedException, InterruptedIOException {
+            Attempt attempt = outcomes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (attempt == null) {
+                finish(null);
+                throw new InterruptedIOException("timeout");
+            }
+            return attempt;
+        }
+
+        synchronized int started() {
+            return calls.size();
+        }
+
+        /**
+         * Cancel every call except the winner and release any responses
+         * that are no longer wanted.
+         *
+         * @param winner the call whose response is being used, or null
+         */
+        synchronized void finish(Call winner) {
+            finished = true;
+            for (Call call : calls) {
+                if (call != winner)
+                    call.cancel();
+            }
+            Attempt unused;
+            while ((unused = outcomes.poll()) != null) {
+                if (unused.response != null)
+                    unused.response.close();
+            }
+        }
+
+        private synchronized void deliver(Attempt attempt) {
+            if (finished) {
+                if (attempt.response != null)
+                    attempt.response.close();
+                return;
+            }
+            outcomes.add(attempt);
+        }
+    }
+}
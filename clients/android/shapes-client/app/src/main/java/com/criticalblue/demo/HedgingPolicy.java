@@ -0,0 +1,148 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        HedgingPolicy.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared state that decides when a request should be hedged.
+ * <p>
+ * Keeps a window of recent request latencies for each key (an executor and
+ * host, see {@link HedgedRequestExecutor}) and derives the hedge delay from a
+ * high percentile of that window, so a duplicate request is only sent once
+ * the first attempt is slower than almost all of its recent peers on the same
+ * path. A global budget caps hedges to a fraction of the requests issued so
+ * that a slow server is not hit with twice the traffic.
+ * <p>
+ * Hedging is opt-in: latencies are always recorded, but no hedge is sent
+ * until {@link #setEnabled(boolean)} has been called with true.
+ */
+final class HedgingPolicy {
+
+    // Number of recent latencies kept to compute the hedge delay
+    private static final int WINDOW_SIZE = 64;
+
+    // Do not hedge until we have seen this many requests
+    private static final int MIN_SAMPLES = 10;
+
+    // Percentile of recent latencies after which a hedge is sent
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    // Never hedge sooner than this, whatever the recent latencies say
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+
+    // Fraction of a hedge earned by each request issued (10% extra load at most)
+    private static final double HEDGE_BUDGET_RATIO = 0.1;
+
+    // Maximum number of hedges that can be sent in a burst
+    private static final double MAX_HEDGE_TOKENS = 3;
+
+    // Latency windows, keyed by executor and host
+    private final Map<String, Window> windows = new HashMap<>();
+
+    private double hedgeTokens = 0;
+    private long requestCount = 0;
+    private long hedgeCount = 0;
+
+    private volatile boolean enabled = false;
+
+    /**
+     * Turn hedging on or off for all executors sharing this policy.
+     *
+     * @param enabled true to send hedged requests
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record the time taken by a request which got a response, or which
+     * was abandoned at its timeout.
+     *
+     * @param key the window to record into
+     * @param millis the request latency in milliseconds
+     */
+    synchronized void recordLatency(String key, long millis) {
+        Window window = windows.get(key);
+        if (window == null) {
+            window = new Window();
+            windows.put(key, window);
+        }
+        window.add(millis);
+    }
+
+    /**
+     * Get how long to wait for the first attempt before sending a hedge.
+     *
+     * @param key the window to take the delay from
+     * @return the hedge delay in milliseconds, or -1 if there are too few
+     *          samples to make a decision
+     */
+    synchronized long hedgeDelayMillis(String key) {
+        Window window = windows.get(key);
+        if (window == null || window.count < MIN_SAMPLES)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(window.latencies, window.count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(HEDGE_PERCENTILE * window.count) - 1;
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, sorted[Math.max(0, index)]);
+    }
+
+    /**
+     * Account for a new request against the hedge budget.
+     */
+    synchronized void onRequest() {
+        requestCount++;
+        hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + HEDGE_BUDGET_RATIO);
+    }
+
+    /**
+     * Take a hedge from the global budget.
+     *
+     * @return true if a hedge may be sent, false if the budget is spent
+     */
+    synchronized boolean tryAcquireHedge() {
+        if (hedgeTokens < 1)
+            return false;
+        hedgeTokens -= 1;
+        hedgeCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("HedgingPolicy{enabled=").append(enabled)
+                .append(", requests=").append(requestCount)
+                .append(", hedges=").append(hedgeCount);
+        for (String key : windows.keySet())
+            sb.append(", ").append(key).append('=').append(hedgeDelayMillis(key)).append("ms");
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Ring buffer of the most recent latencies for one key.
+     */
+    private static final class Window {
+        final long[] latencies = new long[WINDOW_SIZE];
+        int count = 0;
+        int next = 0;
+
+        void add(long millis) {
+            latencies[next] = millis;
+            next = (next + 1) % WINDOW_SIZE;
+            if (count < WINDOW_SIZE)
+                count++;
+        }
+    }
+}
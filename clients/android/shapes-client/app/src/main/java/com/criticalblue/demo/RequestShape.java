@@ -17,7 +17,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.concurrent.TimeUnit;
 
 import android.view.View;
 import android.widget.TextView;
@@ -28,10 +30,11 @@ import com.criticalblue.attestationlibrary.TokenInterface.ApproovResults;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLPeerUnverifiedException;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
-import okhttp3.internal.tls.OkHostnameVerifier;
 
 /**
  * Activity used to retrieve the shape from the demo server using the
@@ -48,12 +51,66 @@ public class RequestShape extends Activity {
     // Local customized HttpClient using interceptor
     OkHttpClient interceptorClient;
 
+    // Executors bounding requests on the clients above; only httpExecutor hedges
+    HedgedRequestExecutor httpExecutor;
+    HedgedRequestExecutor interceptorExecutor;
+
+    // Shared controller learning the timeouts to use for each host
+    AdaptiveTimeouts timeouts;
+
+    // Fetches Approov tokens and records their latency
+    TokenFetcher tokenFetcher;
+
+    // Socket factory timing TLS handshakes, null if not available
+    TimingSSLSocketFactory timingSslSocketFactory;
+
+    // Decides what happens to requests while no token is available
+    AttestationOutagePolicy outagePolicy;
+
+    // Receives shape requests deferred by the outage policy once replayed
+    final Callback deferredShapeCallback = new Callback() {
+
+        @Override
+        public void onFailure(Call call, IOException ex) {
+            Log.w(TAG, "Deferred request failed: " + ex.getMessage());
+            if (isFinishing() || isDestroyed())
+                return;
+            updateDisplayText(R.string.attestation_unavailable);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            try (Response r = response) {
+                if (isFinishing() || isDestroyed())
+                    return;
+                if (r.isSuccessful()) {
+                    Log.i(TAG, "Received a response to a deferred request. Sending an intent to draw the shape.");
+                    showShape(r.body().string());
+                    // One shape is enough, drop any other requests still waiting
+                    outagePolicy.cancel(this);
+                } else if (r.code() == 400) {
+                    Log.e(TAG, "Error code on deferred GET request: " + Integer.toString(r.code()));
+                    updateDisplayText(R.string.server_declined);
+                } else {
+                    Log.e(TAG, "Error code on deferred GET request: " + Integer.toString(r.code()));
+                    updateDisplayText(R.string.unknown_server);
+                }
+            }
+        }
+    };
+
+    // Scores each HTTP stack to choose one automatically
+    TransportSelector transportSelector;
+
     // The view displayed by this activity. Shows simple text to feed information to user
     TextView textView;
 
     // Domain hostname
     static final String DEMO_SERVER_HOSTNAME = "demo-server.approovr.io";
 
+    // Path of the shapes API on the demo server
+    static final String SHAPES_PATH = "/shapes";
+
     // Log tag for searching in logcat
     static final String TAG = "RequestShape";
 
@@ -65,21 +122,64 @@ public class RequestShape extends Activity {
         textView = (TextView) findViewById(R.id.request_text);
         Shapes shapesApp = (Shapes) getApplicationContext();
 
-        // Create a custom HostnameVerifier which supports DynamicPinning
-        // This uses the current HostnameVerifier from OkHttpClient
-        DynamicPinningHostnameVerifier pinningHostnameVerifier
-                = new DynamicPinningHostnameVerifier(OkHostnameVerifier.INSTANCE);
+        // Use the app's HostnameVerifier which supports DynamicPinning
+        DynamicPinningHostnameVerifier pinningHostnameVerifier = shapesApp.getPinningHostnameVerifier();
+
+        timeouts = shapesApp.getAdaptiveTimeouts();
+        tokenFetcher = shapesApp.getTokenFetcher();
+        timingSslSocketFactory = shapesApp.getTimingSslSocketFactory();
+        outagePolicy = shapesApp.getAttestationOutagePolicy();
+        transportSelector = shapesApp.getTransportSelector();
 
         // Build a new instance of the okHttpClient for this requester to use.
+        // The read timing interceptor goes last so it only measures the server.
         httpClient = shapesApp.getHttpClient().newBuilder()
                 .hostnameVerifier(pinningHostnameVerifier)
+                .addNetworkInterceptor(timeouts.newReadInterceptor())
                 .build();
 
         interceptorClient = shapesApp.getHttpClient().newBuilder()
                 .hostnameVerifier(pinningHostnameVerifier)
-                .addNetworkInterceptor(new ApproovTokenInterceptor())
+                .addInterceptor(new ApproovTokenInterceptor(tokenFetcher, outagePolicy))
+                .addNetworkInterceptor(timeouts.newReadInterceptor())
                 .build();
 
+        httpExecutor = new HedgedRequestExecutor("okhttp", httpClient, shapesApp.getHedgeClient(),
+                shapesApp.getHedgingPolicy(), timeouts);
+        // The interceptor fetches a token per attempt, so this path is never hedged
+        interceptorExecutor = new HedgedRequestExecutor(interceptorClient, timeouts);
+
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Nobody is left to show the result of a deferred request
+        outagePolicy.cancel(deferredShapeCallback);
+        super.onDestroy();
+    }
+
+    /**
+     * autoRequestShape() is called from a button press in the activity. It lets the
+     * TransportSelector pick the HTTP stack which has performed best on the current
+     * network and retrieves a random shape with it.
+     *
+     * @param view the view that triggered the request
+     */
+    public void autoRequestShape(View view) {
+        TransportSelector.Transport transport = transportSelector.choose();
+        Log.i(TAG, "Request Button Pressed. Automatic transport selection chose " + transport);
+
+        switch (transport) {
+            case HTTPS_URL_CONNECTION:
+                defaultRequestShape(view);
+                break;
+            case OKHTTP:
+                okHttpRequestShape(view);
+                break;
+            case OKHTTP_INTERCEPTOR:
+                okHttpRequestShapeInterceptor(view);
+                break;
+        }
     }
 
     /**
@@ -96,14 +196,16 @@ public class RequestShape extends Activity {
 
             @Override
             public void run() {
-                
+                final long start = System.nanoTime();
                 String shape = "none";
+                // Set once a shape has been received, for the transport selector
+                boolean succeeded = false;
                 // We may need to retry if there is a
                 // pinning failure first time through
                 boolean retry = false;
                 while (true) {
                     // Fetch an Approov Token using the SDK
-                    ApproovResults approovResults = ApproovAttestation.shared().fetchApproovTokenAndWait(DEMO_SERVER_HOSTNAME);
+                    ApproovResults approovResults = tokenFetcher.fetchToken(DEMO_SERVER_HOSTNAME);
 
                     // Always check the return status of the fetch call.
                     String token;
@@ -117,20 +219,30 @@ public class RequestShape extends Activity {
                         // before timing out. Set the token field to a known value to communicate
                         // this state (rather than leaving empty or excluding from the header)
                         Log.w(TAG, "Approov SDK token fetch failed");
+                        // Don't make a round trip the server is bound to decline
+                        // unless the policy for this endpoint asks for it.
+                        if (!outagePolicy.sendWithoutToken(SHAPES_PATH)) {
+                            deferOrFail();
+                            return;
+                        }
                         token = "NOTOKEN";
                     }
 
                     HttpsURLConnection connection = null;
                     try {
                         // Create a request to send to the /shapes endpoint on the demo server
-                        URL aUrl = new URL("https://" + DEMO_SERVER_HOSTNAME + "/shapes");
+                        URL aUrl = new URL("https://" + DEMO_SERVER_HOSTNAME + SHAPES_PATH);
 
                         // Get our HTTPS connection object
                         connection = (HttpsURLConnection) aUrl.openConnection();
                         // Set this request as a GET
                         connection.setRequestMethod("GET");
-                        // Set a timeout for the request
-                        connection.setConnectTimeout(500);
+                        // Set timeouts learned from previous requests to this host
+                        Log.i(TAG, "Adaptive timeouts " + timeouts.describe(DEMO_SERVER_HOSTNAME));
+                        connection.setConnectTimeout((int) timeouts.connectTimeoutMillis(DEMO_SERVER_HOSTNAME));
+                        connection.setReadTimeout((int) timeouts.readTimeoutMillis(DEMO_SERVER_HOSTNAME));
+                        if (timingSslSocketFactory != null)
+                            connection.setSSLSocketFactory(timingSslSocketFactory);
 
                         // Create a hostname verifier using our dynamic pinning approach
                         DynamicPinningHostnameVerifier verifier
@@ -138,20 +250,27 @@ public class RequestShape extends Activity {
                         connection.setHostnameVerifier(verifier);
 
                         connection.addRequestProperty("Approov-Token", token);
+                        timeouts.enterPhase(AdaptiveTimeouts.Phase.CONNECT);
                         connection.connect();
 
                         // Contact the server to get the shape
+                        timeouts.enterPhase(AdaptiveTimeouts.Phase.READ);
+                        long readStart = System.nanoTime();
                         int responseCode = connection.getResponseCode();
+                        timeouts.record(DEMO_SERVER_HOSTNAME, AdaptiveTimeouts.Phase.READ,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - readStart));
                         if (responseCode == 200) {
                             // Retrieve the shape data from the HTTP response
                             Log.i(TAG, "Received a response from the demo server. Sending an intent to draw the shape.");
                             // Retrieve the shape data from the HTTP response
                             shape = readHttpInputStreamToString(connection);
+                            succeeded = shape != null;
                         } else if (responseCode == 400) {
                             // Invalid token - Log the failure and return an error message
                             Log.e(TAG, "Error code on GET request: " + Integer.toString(responseCode) +
                                     ". Did you forget to register the app, or have you been tampering with it? ");
                             updateDisplayText(R.string.server_declined);
+                            recordTransport(TransportSelector.Transport.HTTPS_URL_CONNECTION, false, start);
                             if(connection != null)
                                 connection.disconnect();
                             return;
@@ -159,6 +278,7 @@ public class RequestShape extends Activity {
                             // Oops, we don't know what happened. Log the failure and return an error message
                             Log.e(TAG, "Error code on GET request: " + Integer.toString(responseCode));
                             updateDisplayText(R.string.unknown_server);
+                            recordTransport(TransportSelector.Transport.HTTPS_URL_CONNECTION, false, start);
                             if(connection != null)
                                 connection.disconnect();
                             return;
@@ -186,6 +306,12 @@ public class RequestShape extends Activity {
                                 Log.e(TAG, "Server Cert mismatch retry failed.");
                                 break;
                             }
+                    } catch (SocketTimeoutException ex) {
+                        // Back off the timeout of the phase that timed out
+                        Log.e(TAG, "Request timed out. " + timeouts.describe(DEMO_SERVER_HOSTNAME));
+                        timeouts.recordTimeout(DEMO_SERVER_HOSTNAME);
+                        connection.disconnect();
+                        break;
                     } catch(Exception e) {
                         Log.e(TAG, "Unhandled Exception.");
                         if(connection != null)
@@ -194,6 +320,9 @@ public class RequestShape extends Activity {
                     }
                 }
 
+                // Report the outcome once, now that it is known
+                recordTransport(TransportSelector.Transport.HTTPS_URL_CONNECTION, succeeded, start);
+
                 // Send an intent to start the the DisplayShape Activity and display
                 // the shape retrieved from the demo server
                 Intent intent = new Intent(getBaseContext(), DisplayShape.class);
@@ -221,14 +350,16 @@ public class RequestShape extends Activity {
 
             @Override
             public void run() {
-
+                final long start = System.nanoTime();
                 String shape = "none";
+                // Set once a shape has been received, for the transport selector
+                boolean succeeded = false;
                 // We may need to retry if there is a
                 // pinning failure first time through
                 boolean retry = false;
                 while (true) {
                     // Fetch an Approov Token using the SDK
-                    ApproovResults approovResults = ApproovAttestation.shared().fetchApproovTokenAndWait(DEMO_SERVER_HOSTNAME);
+                    ApproovResults approovResults = tokenFetcher.fetchToken(DEMO_SERVER_HOSTNAME);
 
                     // Always check the return status of the fetch call.
                     String token;
@@ -242,6 +373,12 @@ public class RequestShape extends Activity {
                         // before timing out. Set the token field to a known value to communicate
                         // this state (rather than leaving empty or excluding from the header)
                         Log.w(TAG, "Approov SDK token fetch failed");
+                        // Don't make a round trip the server is bound to decline
+                        // unless the policy for this endpoint asks for it.
+                        if (!outagePolicy.sendWithoutToken(SHAPES_PATH)) {
+                            deferOrFail();
+                            return;
+                        }
                         token = "NOTOKEN";
                     }
 
@@ -249,7 +386,7 @@ public class RequestShape extends Activity {
                     Request request;
                     try {
                         request = new Request.Builder()
-                                .url("https://" + DEMO_SERVER_HOSTNAME + "/shapes")
+                                .url("https://" + DEMO_SERVER_HOSTNAME + SHAPES_PATH)
                                 .addHeader("Approov-Token", token)
                                 .get()
                                 .build();
@@ -259,7 +396,7 @@ public class RequestShape extends Activity {
                     }
 
                     // Contact the server to get the shape
-                    try (Response response = httpClient.newCall(request).execute()) {
+                    try (Response response = httpExecutor.execute(request)) {
 
                         // Pop up a message in our UI while we load the new Activity
                         updateDisplayText(R.string.fetching);
@@ -268,18 +405,21 @@ public class RequestShape extends Activity {
                             // Retrieve the shape data from the HTTP response
                             Log.i(TAG, "Received a response from the demo server. Sending an intent to draw the shape.");
                             shape = response.body().string();
+                            succeeded = true;
                         } else if (response.code() == 400) {
                             // Invalid token - Log the failure and return an error message
                             Log.e(TAG, "Error code on GET request: " + Integer.toString(response.code()) +
                                     ". Did you forget to register the app, or have you been tampering with it? ");
 
                             updateDisplayText(R.string.server_declined);
+                            recordTransport(TransportSelector.Transport.OKHTTP, false, start);
                             return;
                         } else {
                             // Oops, we don't know what happened. Log the failure and return an error message
                             Log.e(TAG, "Error code on GET request: " + Integer.toString(response.code()));
 
                             updateDisplayText(R.string.unknown_server);
+                            recordTransport(TransportSelector.Transport.OKHTTP, false, start);
                             return;
                         }
                         // Success - break the retry loop
@@ -308,6 +448,9 @@ public class RequestShape extends Activity {
                     }
                 }
 
+                // Report the outcome once, now that it is known
+                recordTransport(TransportSelector.Transport.OKHTTP, succeeded, start);
+
                 // Send an intent to start the the DisplayShape Activity and display
                 // the shape retrieved from the demo server
                 Intent intent = new Intent(getBaseContext(), DisplayShape.class);
@@ -336,8 +479,10 @@ public class RequestShape extends Activity {
 
             @Override
             public void run() {
-
+                final long start = System.nanoTime();
                 String shape = "none";
+                // Set once a shape has been received, for the transport selector
+                boolean succeeded = false;
                 // We may need to retry if there is a
                 // pinning failure first time through
                 boolean retry = false;
@@ -347,7 +492,7 @@ public class RequestShape extends Activity {
                     Request request;
                     try {
                         request = new Request.Builder()
-                                .url("https://" + DEMO_SERVER_HOSTNAME + "/shapes")
+                                .url("https://" + DEMO_SERVER_HOSTNAME + SHAPES_PATH)
                                 .get()
                                 .build();
                     } catch (IllegalArgumentException ex) {
@@ -356,7 +501,7 @@ public class RequestShape extends Activity {
                     }
 
                     // Contact the server to get the shape
-                    try (Response response = interceptorClient.newCall(request).execute()) {
+                    try (Response response = interceptorExecutor.execute(request)) {
 
                         // Pop up a message in our UI while we load the new Activity
                         updateDisplayText(R.string.fetching);
@@ -365,21 +510,30 @@ public class RequestShape extends Activity {
                             // Retrieve the shape data from the HTTP response
                             Log.i(TAG, "Received a response from the demo server. Sending an intent to draw the shape.");
                             shape = response.body().string();
+                            succeeded = true;
                         } else if (response.code() == 400) {
                             // Ivalid token - Log the failure and return an error message
                             Log.e(TAG, "Error code on GET request: " + Integer.toString(response.code()) +
                                     ". Did you forget to register the app, or have you been tampering with it? ");
                             updateDisplayText(R.string.server_declined);
+                            recordTransport(TransportSelector.Transport.OKHTTP_INTERCEPTOR, false, start);
                             return;
                         } else {
                             // Oops, we don't know what happened. Log the failure and return an error message
                             Log.e(TAG, "Error code on GET request: " + Integer.toString(response.code()));
                             updateDisplayText(R.string.unknown_server);
+                            recordTransport(TransportSelector.Transport.OKHTTP_INTERCEPTOR, false, start);
                             return;
                         }
                         // Success - break the retry loop
                         break;
 
+                    } catch (AttestationUnavailableException ex) {
+                        // The interceptor could not get a token and the
+                        // request was not sent
+                        Log.w(TAG, ex.getMessage());
+                        deferOrFail();
+                        return;
                     } catch (SSLPeerUnverifiedException ex) {
                         // Pinning test failed.
                         // This happens if the certificate from the server
@@ -403,6 +557,9 @@ public class RequestShape extends Activity {
                     }
                 }
 
+                // Report the outcome once, now that it is known
+                recordTransport(TransportSelector.Transport.OKHTTP_INTERCEPTOR, succeeded, start);
+
                 // Send an intent to start the the DisplayShape Activity and display
                 // the shape retrieved from the demo server
                 Intent intent = new Intent(getBaseContext(), DisplayShape.class);
@@ -417,6 +574,51 @@ public class RequestShape extends Activity {
     }
 
 
+    /**
+     * Method to report the outcome of a shape request to the TransportSelector
+     *
+     * @param transport the HTTP stack used for the request
+     * @param success true if a shape was received, false if the request failed
+     *                or the server answered with an error
+     * @param startNanos the System.nanoTime() when the request started
+     */
+    private void recordTransport(TransportSelector.Transport transport, boolean success, long startNanos) {
+        transportSelector.record(transport, success,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Method to hand a shape request that could not get a token to the outage
+     * policy, and tell the user whether it will be retried or has failed.
+     * A deferred request is replayed on the interceptor client, which adds
+     * the token, and its result goes to deferredShapeCallback.
+     */
+    private void deferOrFail() {
+        Request request = new Request.Builder()
+                .url("https://" + DEMO_SERVER_HOSTNAME + SHAPES_PATH)
+                .get()
+                .build();
+        OkHttpClient replayClient = timeouts.applyTo(interceptorClient, DEMO_SERVER_HOSTNAME);
+        if (outagePolicy.defer(replayClient, request, deferredShapeCallback)) {
+            updateDisplayText(R.string.request_deferred);
+        } else {
+            updateDisplayText(R.string.attestation_unavailable);
+        }
+    }
+
+    /**
+     * Method to start the DisplayShape Activity for a shape and finish this
+     * one, unless that has already happened
+     */
+    private synchronized void showShape(String shape) {
+        if (isFinishing())
+            return;
+        Intent intent = new Intent(getBaseContext(), DisplayShape.class);
+        intent.putExtra("Shape", shape);
+        startActivity(intent);
+        finish();
+    }
+
     /**
      * Method to update the displayed text in the UI thread for our Activity
      */
@@ -0,0 +1,371 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        ShapeBatchClient.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import android.util.Log;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+import com.criticalblue.attestationlibrary.TokenInterface.ApproovResults;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Fetches several shapes for the cost of a single Approov token fetch.
+ * <p>
+ * {@link #fetchShapes(String, int, ShapesListener)} first asks the server for
+ * the whole batch in one round trip on the batch endpoint, which answers with
+ * one shape name per line. If the server does not support batching (404, 405
+ * or 501) this is remembered for that server and the shapes are fetched with
+ * one request per shape to the shapes endpoint instead. These are all sent at
+ * once on the shared client, so over HTTP/2 they are multiplexed on a single
+ * connection, and they all carry the same token.
+ * <p>
+ * When no token is available the {@link AttestationOutagePolicy} decides
+ * what happens. In DEFER mode the batch is queued and the listener gets the
+ * shapes once a token is available again.
+ * <p>
+ * One client is shared by the app (see {@link Shapes#getShapeBatchClient()})
+ * so that each server's batch support is only probed once.
+ * <p>
+ * As with the single shape requests, callers should catch
+ * SSLPeerUnverifiedException and retry once.
+ * <p>
+ * Use Cases:
+ *
+ *  ShapeBatchClient batchClient = shapesApp.getShapeBatchClient();
+ *  List<String> shapes = batchClient.fetchShapes("https://" + DEMO_SERVER_HOSTNAME, 10, listener);
+ *  if (shapes == null) {
+ *      // Deferred, the listener will be given the shapes
+ *  }
+ */
+final class ShapeBatchClient {
+
+    /**
+     * Receives the shapes of a batch that was deferred for lack of a token.
+     */
+    interface ShapesListener {
+
+        void onShapes(List<String> shapes);
+
+        void onFailure(IOException ex);
+    }
+
+    // Path of the batched shapes API
+    static final String BATCH_PATH = "/shapes/batch";
+
+    // Largest number of shapes fetched in one batch
+    static final int MAX_BATCH_SIZE = 16;
+
+    // Log tag for searching in logcat
+    private static final String TAG = "SHAPE_BATCH";
+
+    private final OkHttpClient client;
+    private final OkHttpClient replayClient;
+    private final TokenSource tokenSource;
+    private final AttestationOutagePolicy outagePolicy;
+    private final AdaptiveTimeouts timeouts;
+
+    // Servers, as host:port, which have told us they have no batch endpoint
+    private final Set<String> serversWithoutBatch = new HashSet<>();
+
+    /**
+     * @param client the client to send requests with; its connection pool is
+     *               shared, but it gets a dispatcher allowing a whole batch
+     *               to be in flight at once
+     * @param tokenSource fetches the Approov token for each batch
+     * @param outagePolicy decides what happens to a batch without a token
+     * @param timeouts the controller providing per-host timeouts
+     */
+    ShapeBatchClient(OkHttpClient client, TokenSource tokenSource, AttestationOutagePolicy outagePolicy,
+                     AdaptiveTimeouts timeouts) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_BATCH_SIZE);
+        this.client = client.newBuilder()
+                .dispatcher(dispatcher)
+                .build();
+
+        // Deferred batches are replayed on the original dispatcher, so a
+        // fallback from the replay never waits on its own dispatcher
+        this.replayClient = client.newBuilder()
+                .addInterceptor(new ApproovTokenInterceptor(tokenSource, outagePolicy))
+                .build();
+        this.tokenSource = tokenSource;
+        this.outagePolicy = outagePolicy;
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * Fetch a number of random shapes, failing fast if no token is
+     * available and the outage policy does not send requests without one.
+     *
+     * @param baseUrl the server URL, e.g. "https://demo-server.approovr.io"
+     * @param count the number of shapes, from 1 to MAX_BATCH_SIZE
+     * @return the shape names, in the order the server returned them
+     * @throws IOException if the shapes could not be fetched
+     */
+    List<String> fetchShapes(String baseUrl, int count) throws IOException {
+        return fetchShapes(baseUrl, count, null);
+    }
+
+    /**
+     * Fetch a number of random shapes.
+     *
+     * @param baseUrl the server URL, e.g. "https://demo-server.approovr.io"
+     * @param count the number of shapes, from 1 to MAX_BATCH_SIZE
+     * @param deferredListener given the shapes if the batch is deferred for
+     *                         lack of a token, or null to fail fast instead
+     * @return the shape names, in the order the server returned them, or
+     *          null if the batch was deferred
+     * @throws IOException if the shapes could not be fetched
+     */
+    List<String> fetchShapes(String baseUrl, int count, ShapesListener deferredListener) throws IOException {
+        HttpUrl url = HttpUrl.parse(baseUrl);
+        if (url == null)
+            throw new IllegalArgumentException("Invalid base URL: " + baseUrl);
+        if (count < 1 || count > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+
+        // Fetch one token for the whole batch
+        String token;
+        ApproovResults approovResults = tokenSource.fetchToken(url.host());
+        if (approovResults.getResult() == ApproovAttestation.AttestationResult.SUCCESS) {
+            token = approovResults.getToken();
+        } else {
+            Log.w(TAG, "Approov SDK token fetch failed");
+            String path = isBatchSupported(url) ? BATCH_PATH : RequestShape.SHAPES_PATH;
+            if (!outagePolicy.sendWithoutToken(path)) {
+                if (defer(url, count, deferredListener))
+                    return null;
+                throw new AttestationUnavailableException("No Approov token for " + url);
+            }
+            token = "NOTOKEN";
+        }
+        return fetchShapes(url, count, token);
+    }
+
+    /**
+     * Fetch the shapes with a token, from the batch endpoint if the server
+     * has one and with multiplexed requests otherwise.
+     */
+    private List<String> fetchShapes(HttpUrl baseUrl, int count, String token) throws IOException {
+        String host = baseUrl.host();
+        OkHttpClient timedClient = timeouts.applyTo(client, host);
+
+        if (isBatchSupported(baseUrl)) {
+            Request request = batchRequest(baseUrl, count).newBuilder()
+                    .header("Approov-Token", token)
+                    .build();
+            List<String> shapes;
+            try (Response response = timedClient.newCall(request).execute()) {
+                shapes = readBatch(baseUrl, response, count);
+            }
+            if (shapes != null)
+                return shapes;
+        }
+
+        Request request = shapeRequest(baseUrl).newBuilder()
+                .header("Approov-Token", token)
+                .build();
+        return fetchMultiplexed(timedClient, request, count, host);
+    }
+
+    /**
+     * Hand a batch without a token to the outage policy. If it is deferred,
+     * the batch request is replayed (or one shape request, if the server has
+     * no batch endpoint) and the rest of the batch fetched with the same
+     * token when it succeeds.
+     *
+     * @return true if the batch was deferred
+     */
+    private boolean defer(final HttpUrl baseUrl, final int count, final ShapesListener listener) {
+        final boolean batch = isBatchSupported(baseUrl);
+        Request request = batch ? batchRequest(baseUrl, count) : shapeRequest(baseUrl);
+        if (listener == null)
+            return outagePolicy.defer(replayClient, request, null);
+
+        return outagePolicy.defer(timeouts.applyTo(replayClient, baseUrl.host()), request, new Callback() {
+
+            @Override
+            public void onFailure(Call call, IOException ex) {
+                listener.onFailure(ex);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                List<String> shapes;
+                try (Response r = response) {
+                    String token = r.request().header("Approov-Token");
+                    if (batch) {
+                        shapes = readBatch(baseUrl, r, count);
+                        if (shapes == null)
+                            shapes = fetchShapes(baseUrl, count, token);
+                    } else {
+                        checkResponse(r);
+                        shapes = new ArrayList<>(count);
+                        shapes.add(r.body().string());
+                        if (count > 1)
+                            shapes.addAll(fetchShapes(baseUrl, count - 1, token));
+                    }
+                } catch (IOException ex) {
+                    listener.onFailure(ex);
+                    return;
+                }
+                listener.onShapes(shapes);
+            }
+        });
+    }
+
+    /**
+     * Read the shapes from a batch endpoint response.
+     *
+     * @return the shapes, or null if the server does not support batching
+     */
+    private List<String> readBatch(HttpUrl baseUrl, Response response, int count) throws IOException {
+        if (response.code() == 404 || response.code() == 405 || response.code() == 501) {
+            Log.i(TAG, "Server does not support batching. Falling back to multiplexed requests.");
+            synchronized (serversWithoutBatch) {
+                serversWithoutBatch.add(serverOf(baseUrl));
+            }
+            return null;
+        }
+        checkResponse(response);
+
+        List<String> shapes = new ArrayList<>();
+        for (String line : response.body().string().split("\n")) {
+            if (!line.trim().isEmpty())
+                shapes.add(line.trim());
+        }
+        if (shapes.size() != count)
+            throw new IOException("Expected " + count + " shapes from batch, received " + shapes.size());
+        return shapes;
+    }
+
+    /**
+     * Fetch the shapes with one request each, all sent at once.
+     */
+    private List<String> fetchMultiplexed(OkHttpClient timedClient, Request request, int count, String host)
+            throws IOException {
+        final String[] shapes = new String[count];
+        final IOException[] failure = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(count);
+        final List<Call> calls = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            Call call = timedClient.newCall(request);
+            calls.add(call);
+            call.enqueue(new Callback() {
+
+                @Override
+                public void onFailure(Call call, IOException ex) {
+                    synchronized (failure) {
+                        if (failure[0] == null)
+                            failure[0] = ex;
+                    }
+                    // One failure fails the batch, so stop waiting for the rest
+                    while (done.getCount() > 0)
+                        done.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (Response r = response) {
+                        checkResponse(r);
+                        shapes[index] = r.body().string();
+                    } catch (IOException ex) {
+                        onFailure(call, ex);
+                        return;
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        try {
+            if (!done.await(timeouts.callTimeoutMillis(host), TimeUnit.MILLISECONDS)) {
+                cancelAll(calls);
+                throw new InterruptedIOException("timeout");
+            }
+        } catch (InterruptedException ex) {
+            cancelAll(calls);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for shapes");
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null) {
+                cancelAll(calls);
+                throw failure[0];
+            }
+        }
+        return Arrays.asList(shapes);
+    }
+
+    private boolean isBatchSupported(HttpUrl baseUrl) {
+        synchronized (serversWithoutBatch) {
+            return !serversWithoutBatch.contains(serverOf(baseUrl));
+        }
+    }
+
+    private static String serverOf(HttpUrl baseUrl) {
+        return baseUrl.host() + ":" + baseUrl.port();
+    }
+
+    private static Request batchRequest(HttpUrl baseUrl, int count) {
+        return new Request.Builder()
+                .url(baseUrl.newBuilder()
+                        .encodedPath(BATCH_PATH)
+                        .addQueryParameter("count", Integer.toString(count))
+                        .build())
+                .get()
+                .build();
+    }
+
+    private static Request shapeRequest(HttpUrl baseUrl) {
+        return new Request.Builder()
+                .url(baseUrl.newBuilder().encodedPath(RequestShape.SHAPES_PATH).build())
+                .get()
+                .build();
+    }
+
+    /**
+     * Turn an unsuccessful response into an exception, as the single shape
+     * requests do.
+     */
+    private static void checkResponse(Response response) throws IOException {
+        if (response.isSuccessful())
+            return;
+        if (response.code() == 400) {
+            Log.e(TAG, "Error code on GET request: " + Integer.toString(response.code()) +
+                    ". Did you forget to register the app, or have you been tampering with it? ");
+        } else {
+            Log.e(TAG, "Error code on GET request: " + Integer.toString(response.code()));
+        }
+        throw new IOException("Error code on GET request: " + response.code());
+    }
+
+    private static void cancelAll(List<Call> calls) {
+        for (Call call : calls)
+            call.cancel();
+    }
+}
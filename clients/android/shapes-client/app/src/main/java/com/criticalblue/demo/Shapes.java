@@ -6,15 +6,32 @@
  ****************************************************************************/
 package com.criticalblue.demo;
 
+import android.app.Activity;
 import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.util.Log;
 
 import com.criticalblue.attestationlibrary.ApproovAttestation;
 import com.criticalblue.attestationlibrary.ApproovConfig;
 
 import java.net.MalformedURLException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
 import okhttp3.OkHttpClient;
+import okhttp3.internal.tls.OkHostnameVerifier;
 
 /**
  * Top level application-derived class that holds the Approov Java library
@@ -25,9 +42,49 @@ public class Shapes extends Application {
     // Shared Http Client object for the app.
     private OkHttpClient httpClient;
 
+    // Shared hedging state: latency windows per executor and host, one app-wide budget
+    private final HedgingPolicy hedgingPolicy = new HedgingPolicy();
+
+    // Client with its own connection pool, shared by every hedged request
+    private OkHttpClient hedgeClient;
+
+    // Shared pinning verifier, so connections from clients built on
+    // httpClient have equal addresses and can be pooled across activities
+    private DynamicPinningHostnameVerifier pinningHostnameVerifier;
+
+    // Shared timeout controller learning round trip times for every host
+    private final AdaptiveTimeouts adaptiveTimeouts = new AdaptiveTimeouts();
+
+    // Shared policy for requests made while no Approov token is available
+    private final AttestationOutagePolicy attestationOutagePolicy = new AttestationOutagePolicy();
+
+    // Token fetcher recording token latencies for the adaptive timeouts
+    private final TokenFetcher tokenFetcher = new TokenFetcher(adaptiveTimeouts, attestationOutagePolicy);
+
+    // Scores the HTTP stacks per network type for automatic selection
+    private TransportSelector transportSelector;
+
+    // Caching resolver shared by every client derived from httpClient
+    private final CachingDns cachingDns = new CachingDns(Dns.SYSTEM, HTTPS_PORT);
+
+    // Socket factory timing connects and TLS handshakes for adaptive timeouts
+    private TimingSSLSocketFactory timingSslSocketFactory;
+
+    // Shared batch client, so each server's batch support is only probed once
+    private ShapeBatchClient shapeBatchClient;
+
     // Log tag for searching in logcat
     private static final String TAG = "ShapesApp";
 
+    // Port raced by the caching resolver when choosing between IPv4 and IPv6
+    private static final int HTTPS_PORT = 443;
+
+    // Number of activities started, so we know when the app is in the foreground
+    private int startedActivities = 0;
+
+    // Network type seen last, so cached lookups are only dropped when it changes
+    private String lastNetwork;
+
     @Override
     public void onCreate(){
         super.onCreate();
@@ -40,8 +97,108 @@ public class Shapes extends Application {
             Log.e(TAG, ex.getMessage());
         }
 
-        // Create shared OkHttpClient object for the app.
-        httpClient = new OkHttpClient();
+        // Resolve the demo server ahead of the first request and keep it
+        // fresh, but only while the app is in the foreground
+        cachingDns.prefetch(RequestShape.DEMO_SERVER_HOSTNAME);
+        registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+                if (startedActivities++ == 0)
+                    cachingDns.setForeground(true);
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+                if (--startedActivities == 0)
+                    cachingDns.setForeground(false);
+            }
+
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+            }
+        });
+
+        // Create shared OkHttpClient object for the app, with sockets
+        // that report their connect and handshake times.
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dns(cachingDns)
+                .addInterceptor(adaptiveTimeouts.newTimeoutInterceptor());
+        try {
+            TrustManagerFactory trustManagerFactory
+                    = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init((KeyStore) null);
+            X509TrustManager trustManager = (X509TrustManager) trustManagerFactory.getTrustManagers()[0];
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] { trustManager }, null);
+
+            timingSslSocketFactory
+                    = new TimingSSLSocketFactory(sslContext.getSocketFactory(), adaptiveTimeouts);
+            builder.socketFactory(timingSslSocketFactory.plainSocketFactory())
+                    .sslSocketFactory(timingSslSocketFactory, trustManager);
+        } catch (GeneralSecurityException | ClassCastException ex) {
+            // Carry on with the platform defaults, timeouts will not adapt
+            Log.e(TAG, "Cannot create timing socket factory: " + ex.getMessage());
+        }
+        httpClient = builder.build();
+
+        // Hedges use a separate pool so they never queue behind a slow connection
+        hedgeClient = httpClient.newBuilder()
+                .connectionPool(new ConnectionPool())
+                .build();
+
+        // Create a custom HostnameVerifier which supports DynamicPinning
+        // This uses the current HostnameVerifier from OkHttpClient
+        pinningHostnameVerifier = new DynamicPinningHostnameVerifier(OkHostnameVerifier.INSTANCE);
+
+        shapeBatchClient = new ShapeBatchClient(httpClient.newBuilder()
+                .hostnameVerifier(pinningHostnameVerifier)
+                .addNetworkInterceptor(adaptiveTimeouts.newReadInterceptor())
+                .build(), tokenFetcher, attestationOutagePolicy, adaptiveTimeouts);
+
+        // Hedged requests are opt-in through the build configuration
+        hedgingPolicy.setEnabled(BuildConfig.HEDGE_REQUESTS);
+
+        transportSelector = new TransportSelector(this, adaptiveTimeouts, RequestShape.DEMO_SERVER_HOSTNAME);
+
+        // Cached addresses and address family races belong to the network
+        // they were made on. The sticky broadcast delivered on registration
+        // matches lastNetwork, so it does not clear the cache.
+        lastNetwork = transportSelector.networkType();
+        registerReceiver(new BroadcastReceiver() {
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                String network = transportSelector.networkType();
+                if (!network.equals(lastNetwork)) {
+                    Log.i(TAG, "Network changed from " + lastNetwork + " to " + network);
+                    lastNetwork = network;
+                    cachingDns.onNetworkChanged();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        // The server declines shape requests without a token, so hold them
+        // until attestation is available rather than sending them anyway.
+        attestationOutagePolicy.setMode(RequestShape.SHAPES_PATH, AttestationOutagePolicy.Mode.DEFER);
+        attestationOutagePolicy.setMode(ShapeBatchClient.BATCH_PATH, AttestationOutagePolicy.Mode.DEFER);
+        attestationOutagePolicy.setTokenFetcher(tokenFetcher);
     }
 
     // Returns a hundle for the Approov attestation object
@@ -55,4 +212,54 @@ public class Shapes extends Application {
         return httpClient;
     }
 
+    // Accessor for the hedging policy shared by all hedging executors
+    public HedgingPolicy getHedgingPolicy(){
+        return hedgingPolicy;
+    }
+
+    // Accessor for the client whose connection pool hedged requests share
+    public OkHttpClient getHedgeClient(){
+        return hedgeClient;
+    }
+
+    // Accessor for the shared dynamic pinning hostname verifier
+    public DynamicPinningHostnameVerifier getPinningHostnameVerifier(){
+        return pinningHostnameVerifier;
+    }
+
+    // Accessor for the adaptive timeout controller
+    public AdaptiveTimeouts getAdaptiveTimeouts(){
+        return adaptiveTimeouts;
+    }
+
+    // Accessor for the policy applied while attestation is unavailable
+    public AttestationOutagePolicy getAttestationOutagePolicy(){
+        return attestationOutagePolicy;
+    }
+
+    // Accessor for the automatic transport selector
+    public TransportSelector getTransportSelector(){
+        return transportSelector;
+    }
+
+    // Accessor for the caching resolver, to read its lookup metrics
+    public CachingDns getCachingDns(){
+        return cachingDns;
+    }
+
+    // Accessor for the token fetcher
+    public TokenFetcher getTokenFetcher(){
+        return tokenFetcher;
+    }
+
+    // Accessor for the timing SSL socket factory, null if it could not be created
+    public TimingSSLSocketFactory getTimingSslSocketFactory(){
+        return timingSslSocketFactory;
+    }
+
+    // Accessor for the shared client fetching several shapes at once
+    public ShapeBatchClient getShapeBatchClient(){
+        return shapeBatchClient;
+    }
+
 }
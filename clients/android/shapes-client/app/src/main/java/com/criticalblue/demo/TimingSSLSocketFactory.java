@@ -0,0 +1,184 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        TimingSSLSocketFactory.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * SSLSocketFactory which measures connect and TLS handshake times and feeds
+ * them into {@link AdaptiveTimeouts}.
+ * <p>
+ * The handshake is timed from socket creation to the handshake completed
+ * callback. When the underlying socket was created by the
+ * {@link #plainSocketFactory()} of this class its connect time is recorded
+ * too, against the same hostname, as raw sockets only know their address.
+ * <p>
+ * Both sockets also mark the phase the current thread has entered, so a
+ * timeout can be put down to the connect or to the handshake.
+ * <p>
+ * Use Cases:
+ *
+ * -- OkHttp --
+ *
+ *  builder.socketFactory(timingFactory.plainSocketFactory())
+ *         .sslSocketFactory(timingFactory, trustManager);
+ *
+ * -- HttpsURLConnection --
+ *
+ *  connection.setSSLSocketFactory(timingFactory);
+ */
+final class TimingSSLSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+    private final AdaptiveTimeouts timeouts;
+    private final SocketFactory plainSocketFactory;
+
+    /**
+     * @param delegate the factory creating the real SSL sockets
+     * @param timeouts the controller to record samples into
+     */
+    TimingSSLSocketFactory(SSLSocketFactory delegate, AdaptiveTimeouts timeouts) {
+        this.delegate = delegate;
+        this.timeouts = timeouts;
+        this.plainSocketFactory = new PlainSocketFactory(timeouts);
+    }
+
+    /**
+     * @return a factory for raw sockets whose connect time is recorded
+     *          when they are layered under TLS by this factory
+     */
+    SocketFactory plainSocketFactory() {
+        return plainSocketFactory;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        if (socket instanceof TimedSocket) {
+            long connectMillis = ((TimedSocket) socket).connectMillis;
+            if (connectMillis >= 0)
+                timeouts.record(host, AdaptiveTimeouts.Phase.CONNECT, connectMillis);
+        }
+        return timed(delegate.createSocket(socket, host, port, autoClose), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return timed(delegate.createSocket(host, port), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return timed(delegate.createSocket(host, port, localHost, localPort), host);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return delegate.createSocket(address, port, localAddress, localPort);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    /**
+     * Start timing the handshake of a newly created SSL socket.
+     */
+    private Socket timed(Socket socket, final String host) {
+        if (socket instanceof SSLSocket) {
+            timeouts.enterPhase(AdaptiveTimeouts.Phase.TLS);
+            final long start = System.nanoTime();
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    timeouts.record(host, AdaptiveTimeouts.Phase.TLS,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    event.getSocket().removeHandshakeCompletedListener(this);
+                }
+            });
+        }
+        return socket;
+    }
+
+    /**
+     * Raw socket which remembers how long its connect took.
+     */
+    private static final class TimedSocket extends Socket {
+        private final AdaptiveTimeouts timeouts;
+        long connectMillis = -1;
+
+        TimedSocket(AdaptiveTimeouts timeouts) {
+            this.timeouts = timeouts;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            timeouts.enterPhase(AdaptiveTimeouts.Phase.CONNECT);
+            long start = System.nanoTime();
+            super.connect(endpoint, timeout);
+            connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Factory for {@link TimedSocket}s.
+     */
+    private static final class PlainSocketFactory extends SocketFactory {
+        private final AdaptiveTimeouts timeouts;
+
+        PlainSocketFactory(AdaptiveTimeouts timeouts) {
+            this.timeouts = timeouts;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new TimedSocket(timeouts);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException {
+            return SocketFactory.getDefault().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return SocketFactory.getDefault().createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        TokenFetcher.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+import com.criticalblue.attestationlibrary.TokenInterface.ApproovResults;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches Approov tokens and records how long each fetch took in
+ * {@link AdaptiveTimeouts}.
+ * <p>
+ * The fetch is left to the SDK's own wait. Token latency is bimodal: a cached
+ * token comes back in about a millisecond, while a real attestation takes
+ * seconds. A timeout learned from mostly cached answers would cut off real
+ * attestations, so the samples are only used to size the call timeout.
+ * <p>
+ * Every result is also reported to the {@link AttestationOutagePolicy}, so
+ * deferred requests are replayed as soon as a token is available again.
+ */
+final class TokenFetcher implements TokenSource {
+
+    private final AdaptiveTimeouts timeouts;
+    private final AttestationOutagePolicy outagePolicy;
+
+    /**
+     * @param timeouts the controller to record token latencies into
+     * @param outagePolicy the policy told about every token fetch result
+     */
+    TokenFetcher(AdaptiveTimeouts timeouts, AttestationOutagePolicy outagePolicy) {
+        this.timeouts = timeouts;
+        this.outagePolicy = outagePolicy;
+    }
+
+    /**
+     * Fetch an Approov token for a host, waiting as long as the SDK does.
+     *
+     * @param host the host the token is for
+     * @return the SDK results
+     */
+    @Override
+    public ApproovResults fetchToken(String host) {
+        long start = System.nanoTime();
+        ApproovResults approovResults = ApproovAttestation.shared().fetchApproovTokenAndWait(host);
+        timeouts.record(host, AdaptiveTimeouts.Phase.TOKEN,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        outagePolicy.onTokenResult(
+                approovResults.getResult() == ApproovAttestation.AttestationResult.SUCCESS);
+        return approovResults;
+    }
+}
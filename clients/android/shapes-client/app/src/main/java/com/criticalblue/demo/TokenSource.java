@@ -0,0 +1,26 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        TokenSource.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import com.criticalblue.attestationlibrary.TokenInterface.ApproovResults;
+
+/**
+ * Source of Approov tokens for requests to a host.
+ * <p>
+ * In the app this is the {@link TokenFetcher}, which asks the Approov SDK.
+ * Tests can supply fixed results so that clients run without the SDK.
+ */
+interface TokenSource {
+
+    /**
+     * Fetch an Approov token for a host.
+     *
+     * @param host the host the token is for
+     * @return the results of the fetch, with the token on SUCCESS
+     */
+    ApproovResults fetchToken(String host);
+}
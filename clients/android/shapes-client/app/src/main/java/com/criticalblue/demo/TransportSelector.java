@@ -0,0 +1,214 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        TransportSelector.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Picks the HTTP stack to fetch a shape with, based on how each stack has
+ * performed on the current type of network.
+ * <p>
+ * Every shape request, whichever button started it, reports whether its
+ * stack got a response from the server and how long it took. For each
+ * network type (e.g. WIFI, MOBILE:LTE) a running average of the latency of
+ * successful requests and of the success rate is kept per stack. Failures
+ * often return at once, so instead of their latency each one is charged the
+ * adaptive call timeout of the shapes host, and the stack with the lowest
+ * expected time to a successful response is chosen. A stack with too few
+ * samples, or none for a while, is tried first; otherwise a small share of
+ * requests is spent exploring a random stack so the scores keep up with the
+ * network.
+ */
+final class TransportSelector {
+
+    /**
+     * The HTTP stacks a shape can be fetched with.
+     */
+    enum Transport {
+        HTTPS_URL_CONNECTION,
+        OKHTTP,
+        OKHTTP_INTERCEPTOR
+    }
+
+    // Log tag for searching in logcat
+    private static final String TAG = "TRANSPORT_SELECTOR";
+
+    // Weight of a new sample in the running averages
+    private static final double SAMPLE_WEIGHT = 0.2;
+
+    // Samples needed for a stack before its score is trusted
+    private static final int MIN_SAMPLES = 3;
+
+    // Share of requests sent on a random stack to keep exploring
+    private static final double EXPLORE_SHARE = 0.05;
+
+    // A stack not tried for this long on a network is sampled again
+    private static final long REEXPLORE_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    // Lower bound on success rate when scoring, so failing stacks still rank
+    private static final double MIN_SUCCESS_RATE = 0.05;
+
+    private final Context context;
+    private final AdaptiveTimeouts timeouts;
+    private final String host;
+    private final Random random = new Random();
+    private final Map<String, Score[]> scores = new HashMap<>();
+
+    /**
+     * @param context used to find the type of the active network
+     * @param timeouts the controller whose call timeout is charged for a failure
+     * @param host the host the shape requests are made to
+     */
+    TransportSelector(Context context, AdaptiveTimeouts timeouts, String host) {
+        this.context = context.getApplicationContext();
+        this.timeouts = timeouts;
+        this.host = host;
+    }
+
+    /**
+     * Choose the stack to use for the next request on the current network.
+     *
+     * @return the chosen stack
+     */
+    synchronized Transport choose() {
+        String network = networkType();
+        Score[] networkScores = scoresFor(network);
+        long now = SystemClock.elapsedRealtime();
+
+        // Sample any stack we know too little about, or have not tried lately
+        for (Transport transport : Transport.values()) {
+            Score score = networkScores[transport.ordinal()];
+            if (score.samples < MIN_SAMPLES || now - score.lastUsedMillis > REEXPLORE_INTERVAL_MILLIS) {
+                Log.i(TAG, "Sampling " + transport + " on " + network);
+                return transport;
+            }
+        }
+
+        if (random.nextDouble() < EXPLORE_SHARE) {
+            Transport transport = Transport.values()[random.nextInt(Transport.values().length)];
+            Log.i(TAG, "Exploring " + transport + " on " + network);
+            return transport;
+        }
+
+        long penaltyMillis = timeouts.callTimeoutMillis(host);
+        Transport best = null;
+        for (Transport transport : Transport.values()) {
+            if (best == null || networkScores[transport.ordinal()].cost(penaltyMillis)
+                    < networkScores[best.ordinal()].cost(penaltyMillis))
+                best = transport;
+        }
+        Log.i(TAG, "Best transport on " + network + " is " + best + ". " + describe(network));
+        return best;
+    }
+
+    /**
+     * Record the outcome of a request made with a stack on the current network.
+     *
+     * @param transport the stack used
+     * @param success true if a response was received from the server
+     * @param millis the time the request took, only used if it succeeded
+     */
+    synchronized void record(Transport transport, boolean success, long millis) {
+        scoresFor(networkType())[transport.ordinal()].update(success, millis);
+    }
+
+    /**
+     * Describe the scores of each stack on a network, for logging.
+     *
+     * @param network the network type
+     * @return a readable summary of the scores
+     */
+    synchronized String describe(String network) {
+        Score[] networkScores = scoresFor(network);
+        long penaltyMillis = timeouts.callTimeoutMillis(host);
+        StringBuilder sb = new StringBuilder(network).append(": failure=").append(penaltyMillis).append("ms");
+        for (Transport transport : Transport.values()) {
+            Score score = networkScores[transport.ordinal()];
+            sb.append(' ').append(transport)
+                    .append("{latency=").append(Math.round(score.latencyMillis))
+                    .append("ms, success=").append(Math.round(score.successRate * 100))
+                    .append("%, cost=").append(Math.round(score.cost(penaltyMillis)))
+                    .append("ms, samples=").append(score.samples).append('}');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the type of the active network, e.g. "WIFI" or "MOBILE:LTE"
+     */
+    String networkType() {
+        ConnectivityManager connectivity
+                = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = (connectivity == null) ? null : connectivity.getActiveNetworkInfo();
+        if (info == null)
+            return "NONE";
+        if (info.getType() == ConnectivityManager.TYPE_MOBILE)
+            return info.getTypeName() + ":" + info.getSubtypeName();
+        return info.getTypeName();
+    }
+
+    private Score[] scoresFor(String network) {
+        Score[] networkScores = scores.get(network);
+        if (networkScores == null) {
+            networkScores = new Score[Transport.values().length];
+            for (int i = 0; i < networkScores.length; i++)
+                networkScores[i] = new Score();
+            scores.put(network, networkScores);
+        }
+        return networkScores;
+    }
+
+    /**
+     * Running latency of successes and success rate of one stack on one network.
+     */
+    private static final class Score {
+        double latencyMillis = 0;
+        double successRate = 1;
+        int samples = 0;
+        int successes = 0;
+        long lastUsedMillis = 0;
+
+        void update(boolean success, long millis) {
+            if (success) {
+                if (successes == 0)
+                    latencyMillis = millis;
+                else
+                    latencyMillis += SAMPLE_WEIGHT * (millis - latencyMillis);
+                successes++;
+            }
+            if (samples == 0)
+                successRate = success ? 1 : 0;
+            else
+                successRate += SAMPLE_WEIGHT * ((success ? 1 : 0) - successRate);
+            samples++;
+            lastUsedMillis = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Expected time to a successful response: each attempt takes the
+         * success latency or the failure penalty, and 1 / successRate
+         * attempts are needed. Without any success the penalty is used as
+         * the latency too.
+         *
+         * @param penaltyMillis the time charged for a failed attempt
+         * @return the cost in milliseconds
+         */
+        double cost(long penaltyMillis) {
+            double latency = (successes == 0) ? penaltyMillis : latencyMillis;
+            double attempt = successRate * latency + (1 - successRate) * penaltyMillis;
+            return attempt / Math.max(MIN_SUCCESS_RATE, successRate);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        AdaptiveTimeoutsTest.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import com.criticalblue.demo.AdaptiveTimeouts.Phase;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the RFC 6298 estimates, clamping and backoff of
+ * {@link AdaptiveTimeouts}.
+ */
+public class AdaptiveTimeoutsTest {
+
+    private static final String HOST = "shapes.example.com";
+
+    private AdaptiveTimeouts timeouts;
+
+    @Before
+    public void setUp() {
+        timeouts = new AdaptiveTimeouts();
+    }
+
+    @Test
+    public void usesInitialTimeoutsUntilMeasured() {
+        assertEquals(3000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+        assertEquals(3000, timeouts.timeoutMillis(HOST, Phase.TLS));
+        assertEquals(10000, timeouts.timeoutMillis(HOST, Phase.TOKEN));
+        assertEquals(10000, timeouts.timeoutMillis(HOST, Phase.READ));
+        assertEquals(26000, timeouts.callTimeoutMillis(HOST));
+    }
+
+    @Test
+    public void firstSampleSetsSrttAndHalfVariance() {
+        timeouts.record(HOST, Phase.CONNECT, 1000);
+
+        // SRTT = 1000, RTTVAR = 500
+        assertEquals(3000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        timeouts.record(HOST, Phase.CONNECT, 1000);
+        timeouts.record(HOST, Phase.CONNECT, 2000);
+
+        // RTTVAR = 0.75 * 500 + 0.25 * |1000 - 2000| = 625
+        // SRTT = 0.875 * 1000 + 0.125 * 2000 = 1125
+        assertEquals(1125 + 4 * 625, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+    }
+
+    @Test
+    public void samplesAreKeptPerHostAndPhase() {
+        timeouts.record(HOST, Phase.CONNECT, 2000);
+
+        assertEquals(6000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+        assertEquals(3000, timeouts.timeoutMillis(HOST, Phase.TLS));
+        assertEquals(3000, timeouts.timeoutMillis("other.example.com", Phase.CONNECT));
+    }
+
+    @Test
+    public void clampsToFloor() {
+        timeouts.record(HOST, Phase.CONNECT, 20);
+
+        assertEquals(1000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+    }
+
+    @Test
+    public void clampsToCeiling() {
+        timeouts.record(HOST, Phase.CONNECT, 5000);
+
+        assertEquals(10000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+    }
+
+    @Test
+    public void cachedTokensDoNotLowerTokenAllowance() {
+        for (int i = 0; i < 20; i++)
+            timeouts.record(HOST, Phase.TOKEN, 1);
+
+        assertEquals(10000, timeouts.tokenTimeoutMillis(HOST));
+    }
+
+    @Test
+    public void timeoutDoublesUpToCeiling() {
+        timeouts.recordTimeout(HOST, Phase.CONNECT);
+        assertEquals(6000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+
+        timeouts.recordTimeout(HOST, Phase.CONNECT);
+        assertEquals(10000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+
+        timeouts.recordTimeout(HOST, Phase.CONNECT);
+        assertEquals(10000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+    }
+
+    @Test
+    public void timeoutDoublesMeasuredEstimate() {
+        timeouts.record(HOST, Phase.CONNECT, 500);
+        assertEquals(1500, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+
+        timeouts.recordTimeout(HOST, Phase.CONNECT);
+        assertEquals(3000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+    }
+
+    @Test
+    public void nextSampleClearsBackoff() {
+        timeouts.record(HOST, Phase.CONNECT, 1000);
+        timeouts.recordTimeout(HOST, Phase.CONNECT);
+        timeouts.recordTimeout(HOST, Phase.CONNECT);
+        assertEquals(10000, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+
+        timeouts.record(HOST, Phase.CONNECT, 1000);
+
+        // RTTVAR = 0.75 * 500 + 0.25 * 0 = 375, SRTT = 1000
+        assertEquals(1000 + 4 * 375, timeouts.timeoutMillis(HOST, Phase.CONNECT));
+    }
+
+    @Test
+    public void recordsTimeoutInPhaseEnteredOnThread() {
+        timeouts.enterPhase(Phase.TLS);
+        timeouts.recordTimeout(HOST);
+
+        assertEquals(3000, timeouts.connectTimeoutMillis(HOST));
+        assertEquals(6000, timeouts.timeoutMillis(HOST, Phase.TLS));
+    }
+
+    @Test
+    public void ignoresTimeoutWithoutPhase() throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                timeouts.recordTimeout(HOST);
+            }
+        });
+        timeouts.enterPhase(Phase.TLS);
+        thread.start();
+        thread.join();
+
+        assertEquals(3000, timeouts.timeoutMillis(HOST, Phase.TLS));
+    }
+
+    @Test
+    public void readTimeoutCoversTlsHandshake() {
+        timeouts.record(HOST, Phase.READ, 100);
+
+        assertEquals(500, timeouts.timeoutMillis(HOST, Phase.READ));
+        assertEquals(3000, timeouts.readTimeoutMillis(HOST));
+    }
+
+    @Test
+    public void callTimeoutIsCappedSumOfPhases() {
+        timeouts.record(HOST, Phase.CONNECT, 100);
+        timeouts.record(HOST, Phase.TLS, 100);
+        timeouts.record(HOST, Phase.READ, 100);
+        assertEquals(1000 + 1000 + 10000 + 500, timeouts.callTimeoutMillis(HOST));
+
+        for (int i = 0; i < 5; i++) {
+            for (Phase phase : Phase.values())
+                timeouts.recordTimeout(HOST, phase);
+        }
+        // 10000 + 10000 + 30000 + 15000 capped at the call ceiling
+        assertEquals(60000, timeouts.callTimeoutMillis(HOST));
+    }
+}
@@ -0,0 +1,237 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        AttestationOutagePolicyTest.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the queue of {@link AttestationOutagePolicy}, replaying requests
+ * on a client whose interceptor stands in for the token interceptor and the
+ * server.
+ */
+public class AttestationOutagePolicyTest {
+
+    private static final String SHAPES_URL = "https://shapes.example.com/shapes";
+    private static final String OTHER_URL = "https://shapes.example.com/other";
+
+    private AttestationOutagePolicy policy;
+    private ScriptedInterceptor server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() {
+        policy = new AttestationOutagePolicy();
+        policy.setMode("/shapes", AttestationOutagePolicy.Mode.DEFER);
+        server = new ScriptedInterceptor();
+        client = new OkHttpClient.Builder().addInterceptor(server).build();
+    }
+
+    @Test
+    public void failsFastWhenQueueIsFull() {
+        for (int i = 0; i < 16; i++)
+            assertTrue(policy.defer(client, request(SHAPES_URL), new RecordingCallback()));
+
+        RecordingCallback overflow = new RecordingCallback();
+        assertFalse(policy.defer(client, request(SHAPES_URL), overflow));
+
+        assertEquals(16, policy.queueDepth());
+        assertEquals(17, policy.savedRoundTrips());
+        assertEquals(1, overflow.done.getCount());
+    }
+
+    @Test
+    public void failsFastOutsideDeferMode() {
+        assertFalse(policy.defer(client, request(OTHER_URL), new RecordingCallback()));
+        assertFalse(policy.defer(client, request(SHAPES_URL), null));
+
+        assertEquals(0, policy.queueDepth());
+        assertEquals(2, policy.savedRoundTrips());
+    }
+
+    @Test
+    public void expiresOldRequests() throws Exception {
+        policy = new AttestationOutagePolicy(50);
+        policy.setMode("/shapes", AttestationOutagePolicy.Mode.DEFER);
+        RecordingCallback old = new RecordingCallback();
+        assertTrue(policy.defer(client, request(SHAPES_URL), old));
+
+        Thread.sleep(100);
+        assertTrue(policy.defer(client, request(SHAPES_URL), new RecordingCallback()));
+
+        assertTrue(old.done.await(10, TimeUnit.SECONDS));
+        assertTrue(old.failure instanceof AttestationUnavailableException);
+        assertTrue(old.failure.getMessage(), old.failure.getMessage().contains("expired"));
+        assertEquals(1, policy.queueDepth());
+        assertEquals(0, server.requestCount());
+    }
+
+    @Test
+    public void requeuesReplayWhileTokenIsStillUnavailable() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        assertTrue(policy.defer(client, request(SHAPES_URL), callback));
+
+        server.unavailable = true;
+        policy.onTokenResult(true);
+        awaitQueueDepth(1);
+        assertEquals(1, callback.done.getCount());
+
+        server.unavailable = false;
+        policy.onTokenResult(true);
+
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        assertNull(callback.failure);
+        assertEquals("Circle", callback.body);
+        assertEquals(0, policy.queueDepth());
+        assertEquals(2, server.requestCount());
+    }
+
+    @Test
+    public void countsSavedRoundTripOncePerRequest() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        assertTrue(policy.defer(client, request(SHAPES_URL), callback));
+
+        server.unavailable = true;
+        for (int i = 0; i < 3; i++) {
+            policy.onTokenResult(true);
+            awaitRequestCount(i + 1);
+            awaitQueueDepth(1);
+        }
+        server.unavailable = false;
+        policy.onTokenResult(true);
+
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, policy.savedRoundTrips());
+    }
+
+    @Test
+    public void cancelStopsReplayInFlight() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        assertTrue(policy.defer(client, request(SHAPES_URL), callback));
+
+        server.release = new CountDownLatch(1);
+        policy.onTokenResult(true);
+        assertTrue(server.started.await(10, TimeUnit.SECONDS));
+
+        policy.cancel(callback);
+        server.release.countDown();
+
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        assertNull(callback.body);
+        assertNotNull(callback.failure);
+        assertEquals(0, policy.queueDepth());
+    }
+
+    @Test
+    public void cancelDropsQueuedRequests() {
+        RecordingCallback cancelled = new RecordingCallback();
+        assertTrue(policy.defer(client, request(SHAPES_URL), cancelled));
+        assertTrue(policy.defer(client, request(SHAPES_URL), new RecordingCallback()));
+
+        policy.cancel(cancelled);
+
+        assertEquals(1, policy.queueDepth());
+    }
+
+    private void awaitQueueDepth(int depth) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (policy.queueDepth() != depth && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(depth, policy.queueDepth());
+    }
+
+    private void awaitRequestCount(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.requestCount() < count && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(count, server.requestCount());
+    }
+
+    private static Request request(String url) {
+        return new Request.Builder().url(url).build();
+    }
+
+    /**
+     * Interceptor answering every request with a shape, or failing it as the
+     * token interceptor does while attestation is still unavailable.
+     */
+    private static final class ScriptedInterceptor implements Interceptor {
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile boolean unavailable = false;
+        volatile CountDownLatch release = null;
+        private int requestCount = 0;
+
+        synchronized int requestCount() {
+            return requestCount;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            synchronized (this) {
+                requestCount++;
+            }
+            started.countDown();
+            CountDownLatch latch = release;
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            if (unavailable)
+                throw new AttestationUnavailableException("No token for " + chain.request().url());
+            return new Response.Builder()
+                    .request(chain.request())
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("OK")
+                    .body(ResponseBody.create(null, "Circle"))
+                    .build();
+        }
+    }
+
+    /**
+     * Callback remembering the outcome of a deferred request.
+     */
+    private static final class RecordingCallback implements Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String body;
+        volatile IOException failure;
+
+        @Override
+        public void onFailure(Call call, IOException ex) {
+            failure = ex;
+            done.countDown();
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            body = response.body().string();
+            done.countDown();
+        }
+    }
+}
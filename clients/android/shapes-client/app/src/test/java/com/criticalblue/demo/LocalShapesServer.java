@@ -0,0 +1,230 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        LocalShapesServer.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal stand-in for the demo server's shapes API, listening over plain
+ * HTTP/1.1 on the loopback interface so shape clients can be exercised
+ * in JVM unit tests, without the real server or a network.
+ * <p>
+ * It answers GET /shapes with a random shape name and, if batching is
+ * enabled, GET /shapes/batch?count=n with n shape names, one per line.
+ * Like the real server it declines (400) requests whose Approov-Token
+ * header is missing or NOTOKEN. Tokens are not otherwise checked.
+ * <p>
+ * Use Cases:
+ *
+ *  try (LocalShapesServer server = new LocalShapesServer(true)) {
+ *      // Point a client at server.url()
+ *      // server.requestCount() tells how many round trips were made
+ *  }
+ */
+final class LocalShapesServer implements Closeable {
+
+    // The shapes the demo server knows about
+    static final String[] SHAPES = { "Circle", "Rectangle", "Square", "Triangle" };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final boolean batchSupported;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final Random random = new Random();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final Set<Socket> openSockets = new HashSet<>();
+
+    /**
+     * Start a server on a free loopback port.
+     *
+     * @param batchSupported true to serve the batch endpoint, false to
+     *                       answer it with 404 like a server without batching
+     * @throws IOException if the server socket cannot be opened
+     */
+    LocalShapesServer(boolean batchSupported) throws IOException {
+        this.batchSupported = batchSupported;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        connections.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * @return the base URL of the server, e.g. "http://127.0.0.1:12345"
+     */
+    String url() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of requests served so far
+     */
+    int requestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+
+        // Closing the sockets unblocks threads waiting on keep-alive reads
+        synchronized (openSockets) {
+            for (Socket socket : openSockets)
+                socket.close();
+            openSockets.clear();
+        }
+        connections.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (openSockets) {
+                    openSockets.add(socket);
+                }
+                connections.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        serveConnection(socket);
+                    }
+                });
+            } catch (SocketException ex) {
+                // Server socket closed
+                return;
+            } catch (IOException ex) {
+                // Failed to accept this connection, carry on with the next
+            }
+        }
+    }
+
+    /**
+     * Serve requests on one keep-alive connection until the client closes it.
+     */
+    private void serveConnection(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ASCII));
+            OutputStream out = s.getOutputStream();
+
+            String requestLine;
+            while ((requestLine = in.readLine()) != null) {
+                if (requestLine.isEmpty())
+                    continue;
+
+                // Only the token and connection headers matter here
+                String token = null;
+                boolean close = false;
+                String header;
+                while ((header = in.readLine()) != null && !header.isEmpty()) {
+                    int colon = header.indexOf(':');
+                    if (colon < 0)
+                        continue;
+                    String name = header.substring(0, colon).trim();
+                    String value = header.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Approov-Token"))
+                        token = value;
+                    else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close"))
+                        close = true;
+                }
+
+                requestCount.incrementAndGet();
+                respond(out, requestLine, token);
+                if (close)
+                    return;
+            }
+        } catch (IOException ex) {
+            // Connection closed by the client or by close()
+        } finally {
+            synchronized (openSockets) {
+                openSockets.remove(socket);
+            }
+        }
+    }
+
+    private void respond(OutputStream out, String requestLine, String token) throws IOException {
+        String[] parts = requestLine.split(" ");
+        String method = parts[0];
+        String target = (parts.length > 1) ? parts[1] : "/";
+        int query = target.indexOf('?');
+        String path = (query < 0) ? target : target.substring(0, query);
+
+        if (!method.equals("GET")) {
+            write(out, 405, "Method Not Allowed", "");
+        } else if (!path.equals(RequestShape.SHAPES_PATH) && !path.equals(ShapeBatchClient.BATCH_PATH)) {
+            write(out, 404, "Not Found", "");
+        } else if (path.equals(ShapeBatchClient.BATCH_PATH) && !batchSupported) {
+            write(out, 404, "Not Found", "");
+        } else if (token == null || token.equals("NOTOKEN")) {
+            write(out, 400, "Bad Request", "");
+        } else if (path.equals(RequestShape.SHAPES_PATH)) {
+            write(out, 200, "OK", randomShape());
+        } else {
+            int count = batchCount(target.substring(query + 1));
+            if (count < 1) {
+                write(out, 400, "Bad Request", "");
+                return;
+            }
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < count; i++)
+                body.append(randomShape()).append('\n');
+            write(out, 200, "OK", body.toString());
+        }
+    }
+
+    /**
+     * Read the count parameter of a batch request, or -1 if it is missing.
+     */
+    private static int batchCount(String queryString) {
+        for (String parameter : queryString.split("&")) {
+            if (parameter.startsWith("count=")) {
+                try {
+                    return Integer.parseInt(parameter.substring("count=".length()));
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private synchronized String randomShape() {
+        return SHAPES[random.nextInt(SHAPES.length)];
+    }
+
+    private static void write(OutputStream out, int code, String reason, String body) throws IOException {
+        byte[] bodyBytes = body.getBytes(ASCII);
+        String head = "HTTP/1.1 " + code + " " + reason + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + bodyBytes.length + "\r\n"
+                + "\r\n";
+        out.write(head.getBytes(ASCII));
+        out.write(bodyBytes);
+        out.flush();
+    }
+}
@@ -0,0 +1,255 @@
+/*****************************************************************************
+ * Project:     Demo Client App
+ * File:        ShapeBatchClientTest.java
+ * Original:    Created on 19 October 2026
+ * Copyright(c) 2016 - 2026 by CriticalBlue Ltd.
+ ****************************************************************************/
+package com.criticalblue.demo;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+import com.criticalblue.attestationlibrary.TokenInterface.ApproovResults;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ShapeBatchClient} against a {@link LocalShapesServer},
+ * with a fixed token source in place of the Approov SDK.
+ */
+public class ShapeBatchClientTest {
+
+    private LocalShapesServer server;
+    private AttestationOutagePolicy outagePolicy;
+    private FixedTokenSource tokenSource;
+    private ShapeBatchClient batchClient;
+
+    @Before
+    public void setUp() {
+        outagePolicy = new AttestationOutagePolicy();
+        tokenSource = new FixedTokenSource();
+        batchClient = new ShapeBatchClient(new OkHttpClient(), tokenSource, outagePolicy, new AdaptiveTimeouts());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void fetchesWholeBatchInOneRoundTrip() throws IOException {
+        server = new LocalShapesServer(true);
+
+        List<String> shapes = batchClient.fetchShapes(server.url(), 5);
+
+        assertEquals(5, shapes.size());
+        assertKnownShapes(shapes);
+        assertEquals(1, server.requestCount());
+    }
+
+    @Test
+    public void fallsBackToOneRequestPerShapeWithoutBatchEndpoint() throws IOException {
+        server = new LocalShapesServer(false);
+
+        List<String> shapes = batchClient.fetchShapes(server.url(), 4);
+
+        assertEquals(4, shapes.size());
+        assertKnownShapes(shapes);
+        // The declined batch request plus one request per shape
+        assertEquals(5, server.requestCount());
+    }
+
+    @Test
+    public void remembersServerWithoutBatchEndpoint() throws IOException {
+        server = new LocalShapesServer(false);
+
+        batchClient.fetchShapes(server.url(), 4);
+        batchClient.fetchShapes(server.url(), 4);
+
+        // Only the first fetch tries the batch endpoint
+        assertEquals(9, server.requestCount());
+    }
+
+    @Test
+    public void serverDeclinesBatchSentWithoutToken() throws IOException {
+        server = new LocalShapesServer(true);
+        tokenSource.token = null;
+        outagePolicy.setDefaultMode(AttestationOutagePolicy.Mode.SEND);
+
+        try {
+            batchClient.fetchShapes(server.url(), 3);
+            fail("Expected the server to decline a NOTOKEN request");
+        } catch (AttestationUnavailableException ex) {
+            fail("Expected the request to be sent with NOTOKEN");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("400"));
+        }
+        assertEquals(1, server.requestCount());
+    }
+
+    @Test
+    public void failsFastWithoutTokenAndCountsSavedRoundTrip() throws IOException {
+        server = new LocalShapesServer(true);
+        tokenSource.token = null;
+        outagePolicy.setDefaultMode(AttestationOutagePolicy.Mode.FAIL_FAST);
+
+        try {
+            batchClient.fetchShapes(server.url(), 3);
+            fail("Expected the batch to fail without a token");
+        } catch (AttestationUnavailableException ex) {
+            // Expected
+        }
+        assertEquals(0, server.requestCount());
+        assertEquals(1, outagePolicy.savedRoundTrips());
+    }
+
+    @Test
+    public void defersBatchWithoutTokenAndReplaysIt() throws Exception {
+        server = new LocalShapesServer(true);
+        tokenSource.token = null;
+        outagePolicy.setDefaultMode(AttestationOutagePolicy.Mode.DEFER);
+
+        RecordingListener listener = new RecordingListener();
+        assertNull(batchClient.fetchShapes(server.url(), 3, listener));
+        assertEquals(0, server.requestCount());
+        assertEquals(1, outagePolicy.queueDepth());
+        assertEquals(1, outagePolicy.savedRoundTrips());
+
+        tokenSource.token = "test-token";
+        outagePolicy.onTokenResult(true);
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        assertNull(listener.failure);
+        assertEquals(3, listener.shapes.size());
+        assertKnownShapes(listener.shapes);
+        assertEquals(1, server.requestCount());
+    }
+
+    @Test
+    public void defersWithoutBatchEndpointAndReplaysOneRequestPerShape() throws Exception {
+        server = new LocalShapesServer(false);
+        batchClient.fetchShapes(server.url(), 2);
+        assertEquals(3, server.requestCount());
+
+        tokenSource.token = null;
+        outagePolicy.setDefaultMode(AttestationOutagePolicy.Mode.DEFER);
+        RecordingListener listener = new RecordingListener();
+        assertNull(batchClient.fetchShapes(server.url(), 3, listener));
+
+        tokenSource.token = "test-token";
+        outagePolicy.onTokenResult(true);
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        assertNull(listener.failure);
+        assertEquals(3, listener.shapes.size());
+        assertKnownShapes(listener.shapes);
+        // The replayed shape request plus one request for each other shape
+        assertEquals(6, server.requestCount());
+    }
+
+    @Test
+    public void failsMultiplexedBatchOnFirstFailure() throws IOException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger shapeRequests = new AtomicInteger();
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(new Interceptor() {
+
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                // No batch endpoint, the first shape request is declined and
+                // the others hang until the test ends
+                int code = 200;
+                if (chain.request().url().encodedPath().equals(ShapeBatchClient.BATCH_PATH)) {
+                    code = 404;
+                } else if (shapeRequests.incrementAndGet() == 1) {
+                    code = 400;
+                } else {
+                    try {
+                        release.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+                return new Response.Builder()
+                        .request(chain.request())
+                        .protocol(Protocol.HTTP_1_1)
+                        .code(code)
+                        .message("Test")
+                        .body(ResponseBody.create(null, "Circle"))
+                        .build();
+            }
+        }).build();
+        batchClient = new ShapeBatchClient(client, tokenSource, outagePolicy, new AdaptiveTimeouts());
+
+        long start = System.nanoTime();
+        try {
+            batchClient.fetchShapes("http://shapes.example.com", 4);
+            fail("Expected the batch to fail with its first request");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("400"));
+        } finally {
+            release.countDown();
+        }
+        // Well within the call timeout the batch would otherwise wait for
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+    }
+
+    private static void assertKnownShapes(List<String> shapes) {
+        for (String shape : shapes)
+            assertTrue(shape, Arrays.asList(LocalShapesServer.SHAPES).contains(shape));
+    }
+
+    /**
+     * Token source answering with a fixed token, or failing when it is null.
+     */
+    private static final class FixedTokenSource implements TokenSource {
+        volatile String token = "test-token";
+
+        @Override
+        public ApproovResults fetchToken(String host) {
+            String current = token;
+            if (current == null)
+                return new ApproovResults(ApproovAttestation.AttestationResult.FAILURE, null);
+            return new ApproovResults(ApproovAttestation.AttestationResult.SUCCESS, current);
+        }
+    }
+
+    /**
+     * Listener remembering the outcome of a deferred batch.
+     */
+    private static final class RecordingListener implements ShapeBatchClient.ShapesListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile List<String> shapes;
+        volatile IOException failure;
+
+        @Override
+        public void onShapes(List<String> shapes) {
+            this.shapes = shapes;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException ex) {
+            failure = ex;
+            done.countDown();
+        }
+    }
+}